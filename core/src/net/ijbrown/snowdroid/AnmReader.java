@@ -8,35 +8,31 @@ import com.badlogic.gdx.math.Vector3;
  */
 public class AnmReader
 {
-    public static AnimData Decode(ByteBuffer dataBuffer)
+    public static AnimData Decode(ByteBuffer data)
     {
-        final byte[] data = dataBuffer.data;
-        int startOffset = dataBuffer.startOffset;
-        int length =dataBuffer.len;
-
-        int endIndex = startOffset + length;
+        int endIndex = data.len;
         AnimData animData = new AnimData();
-        animData.numBones = DataUtil.getLEInt(data, startOffset);
-        animData.offset4Val = DataUtil.getLEInt(data, startOffset + 4);
-        animData.offset14Val = DataUtil.getLEInt(data, startOffset + 0x14);
-        animData.offset18Val = DataUtil.getLEInt(data, startOffset + 0x18);
-        int offset8Val = startOffset + DataUtil.getLEInt(data, startOffset + 8);
+        animData.numBones = data.getLEInt(0);
+        animData.offset4Val = data.getLEInt(4);
+        animData.offset14Val = data.getLEInt(0x14);
+        animData.offset18Val = data.getLEInt(0x18);
+        int offset8Val = data.getLEInt(8);
 
-        int bindingPoseOffset = startOffset + DataUtil.getLEInt(data, startOffset + 0x0C);
+        int bindingPoseOffset = data.getLEInt(0x0C);
         animData.bindingPose = new Vector3[animData.numBones];
         for (int i = 0; i < animData.numBones; ++i) {
             animData.bindingPose[i] = new Vector3(
-                    -DataUtil.getLEShort(data, bindingPoseOffset + i * 8 + 0) / 64.0f,
-                    -DataUtil.getLEShort(data, bindingPoseOffset + i * 8 + 2) / 64.0f,
-                    -DataUtil.getLEShort(data, bindingPoseOffset + i * 8 + 4) / 64.0f
+                    -data.getLEShort(bindingPoseOffset + i * 8 + 0) / 64.0f,
+                    -data.getLEShort(bindingPoseOffset + i * 8 + 2) / 64.0f,
+                    -data.getLEShort(bindingPoseOffset + i * 8 + 4) / 64.0f
             );
         }
 
         // Skeleton structure
-        int offset10Val = startOffset + DataUtil.getLEInt(data, startOffset + 0x10);
+        int offset10Val = data.getLEInt(0x10);
         animData.skeletonDef = new int[animData.numBones];
         for (int i = 0; i < animData.numBones; ++i) {
-            animData.skeletonDef[i] = data[offset10Val + i];
+            animData.skeletonDef[i] = data.getByte(offset10Val + i);
         }
 
         AnimData.AnimMeshPose[] curPose = new AnimData.AnimMeshPose[animData.numBones];
@@ -49,14 +45,14 @@ public class AnmReader
             int frameOff = offset8Val + boneNum * 0x0e;
 
             pose.position = new Vector3(
-                    DataUtil.getLEShort(data, frameOff) / 64.0f,
-                    DataUtil.getLEShort(data, frameOff + 2) / 64.0f,
-                    DataUtil.getLEShort(data, frameOff + 4) / 64.0f);
+                    data.getLEShort(frameOff) / 64.0f,
+                    data.getLEShort(frameOff + 2) / 64.0f,
+                    data.getLEShort(frameOff + 4) / 64.0f);
 
-            float a = DataUtil.getLEShort(data, frameOff + 6) / 4096.0f;
-            float b = DataUtil.getLEShort(data, frameOff + 8) / 4096.0f;
-            float c = DataUtil.getLEShort(data, frameOff + 0x0A) / 4096.0f;
-            float d = DataUtil.getLEShort(data, frameOff + 0x0C) / 4096.0f;
+            float a = data.getLEShort(frameOff + 6) / 4096.0f;
+            float b = data.getLEShort(frameOff + 8) / 4096.0f;
+            float c = data.getLEShort(frameOff + 0x0A) / 4096.0f;
+            float d = data.getLEShort(frameOff + 0x0C) / 4096.0f;
 
             pose.rotation = new Quaternion(b, c, d, a);
 
@@ -77,8 +73,8 @@ public class AnmReader
 
         pose = null;
         while (otherOff < endIndex) {
-            int count = data[otherOff++];
-            byte byte2 = data[otherOff++];
+            int count = data.getByte(otherOff++);
+            byte byte2 = data.getByte(otherOff++);
             int boneNum = byte2 & 0x3f;
             if (boneNum == 0x3f) break;
 
@@ -102,15 +98,15 @@ public class AnmReader
             if ((byte2 & 0x80) == 0x80) {
                 int a, b, c, d;
                 if ((byte2 & 0x40) == 0x40) {
-                    a = data[otherOff++];
-                    b = data[otherOff++];
-                    c = data[otherOff++];
-                    d = data[otherOff++];
+                    a = data.getByte(otherOff++);
+                    b = data.getByte(otherOff++);
+                    c = data.getByte(otherOff++);
+                    d = data.getByte(otherOff++);
                 } else {
-                    a = DataUtil.getLEShort(data, otherOff);
-                    b = DataUtil.getLEShort(data, otherOff + 2);
-                    c = DataUtil.getLEShort(data, otherOff + 4);
-                    d = DataUtil.getLEShort(data, otherOff + 6);
+                    a = data.getLEShort(otherOff);
+                    b = data.getLEShort(otherOff + 2);
+                    c = data.getLEShort(otherOff + 4);
+                    d = data.getLEShort(otherOff + 6);
                     otherOff += 8;
                 }
                 Quaternion angVel = new Quaternion(b, c, d, a);
@@ -131,13 +127,13 @@ public class AnmReader
             } else {
                 int x, y, z;
                 if ((byte2 & 0x40) == 0x40) {
-                    x = data[otherOff++];
-                    y = data[otherOff++];
-                    z = data[otherOff++];
+                    x = data.getByte(otherOff++);
+                    y = data.getByte(otherOff++);
+                    z = data.getByte(otherOff++);
                 } else {
-                    x = DataUtil.getLEShort(data, otherOff);
-                    y = DataUtil.getLEShort(data, otherOff + 2);
-                    z = DataUtil.getLEShort(data, otherOff + 4);
+                    x = data.getLEShort(otherOff);
+                    y = data.getLEShort(otherOff + 2);
+                    z = data.getLEShort(otherOff + 4);
                     otherOff += 6;
                 }
                 Vector3 vel = new Vector3(x, y, z);
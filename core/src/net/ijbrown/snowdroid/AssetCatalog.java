@@ -0,0 +1,326 @@
+package net.ijbrown.snowdroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An index of every lump and lump entry in all the GOB files under a data directory.
+ * The GOB files are scanned in parallel, after which any asset can be located by name.
+ */
+public class AssetCatalog
+{
+    /**
+     * Scans all the .GOB files in and below dataDir.
+     */
+    public static AssetCatalog build(File dataDir) throws IOException
+    {
+        return build(dataDir, null);
+    }
+
+    /**
+     * Scans all the .GOB files in and below dataDir, using a persistent cache of the results.
+     * Only GOB files that are not in the cache, or have changed size or modification time since it
+     * was written, are scanned. The cache is rewritten if anything changed.
+     *
+     * GOB files are known by their file name, so two GOB files with the same name in different directories
+     * are an error.
+     *
+     * @param cacheFile the cache file, or null to always scan everything.
+     */
+    public static AssetCatalog build(File dataDir, File cacheFile) throws IOException
+    {
+        List<File> gobFiles = new ArrayList<File>();
+        findGobFiles(dataDir, gobFiles);
+
+        // The names of all the assets, shared by the GOBs read from the cache and the GOBs scanned. It is dropped
+        // once the catalog is built, so that it does not hold on to names the catalog no longer refers to.
+        NameTable nameTable = new NameTable();
+        CatalogCache cache = cacheFile == null ? null : CatalogCache.load(cacheFile, gobFiles, nameTable);
+
+        List<List<AssetLocation>> locations = new ArrayList<List<AssetLocation>>(gobFiles.size());
+        List<GobScanTask> tasks = new ArrayList<GobScanTask>();
+        GobScanTask[] gobTasks = new GobScanTask[gobFiles.size()];
+        for (int gobNum = 0; gobNum < gobFiles.size(); ++gobNum) {
+            File gobFile = gobFiles.get(gobNum);
+            List<AssetLocation> cached = cache == null ? null : cache.getLocations(gobFile);
+            if (cached == null) {
+                gobTasks[gobNum] = new GobScanTask(gobFile, nameTable);
+                tasks.add(gobTasks[gobNum]);
+            }
+            locations.add(cached);
+        }
+        if (!tasks.isEmpty()) {
+            WorkerPool.get().invoke(new ScanAllTask(tasks));
+        }
+
+        AssetCatalog catalog = new AssetCatalog();
+        for (int gobNum = 0; gobNum < gobFiles.size(); ++gobNum) {
+            GobScanTask task = gobTasks[gobNum];
+            if (task != null) {
+                if (task.error != null) {
+                    throw task.error;
+                }
+                locations.set(gobNum, task.locations);
+            }
+            catalog.addGob(gobFiles.get(gobNum), task == null ? null : task.gob, locations.get(gobNum));
+        }
+
+        if (cacheFile != null && (cache == null || !cache.isUpToDate())) {
+            try {
+                CatalogCache.write(cacheFile, gobFiles, locations);
+            } catch (IOException e) {
+                // Not fatal, the catalog is still usable. It will just be rebuilt next time.
+                System.out.println("Failed to write asset catalog cache: " + e.getMessage());
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Finds an asset by name. If more than one GOB contains the asset, the first in file name order is returned.
+     *
+     * @return the location, or null if the asset is not in any GOB.
+     */
+    public AssetLocation find(String name)
+    {
+        List<AssetLocation> all = locations.get(name);
+        return all == null ? null : all.get(0);
+    }
+
+    /**
+     * Finds every copy of an asset.
+     */
+    public List<AssetLocation> findAll(String name)
+    {
+        List<AssetLocation> all = locations.get(name);
+        return all == null ? Collections.<AssetLocation>emptyList() : Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Finds every asset whose name ends with the given extension, such as ".tex".
+     */
+    public List<AssetLocation> findAllWithExtension(String extension)
+    {
+        List<AssetLocation> found = new ArrayList<AssetLocation>();
+        for (Map.Entry<String, List<AssetLocation>> entry : locations.entrySet()) {
+            if (entry.getKey().endsWith(extension)) {
+                found.addAll(entry.getValue());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds an entry within a named lump, for when the same entry name appears in several lumps.
+     */
+    public AssetLocation find(String lumpName, String entryName)
+    {
+        List<AssetLocation> all = locations.get(entryName);
+        if (all != null) {
+            for (AssetLocation location : all) {
+                if (lumpName.equals(location.lumpName)) {
+                    return location;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds an entry within a lump in a particular GOB.
+     */
+    public AssetLocation find(String gobName, String lumpName, String entryName)
+    {
+        List<AssetLocation> all = locations.get(entryName);
+        if (all != null) {
+            for (AssetLocation location : all) {
+                if (gobName.equals(location.gobName) && lumpName.equals(location.lumpName)) {
+                    return location;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the data for an asset. No data is copied, the buffer is a view of the mapped GOB.
+     */
+    public ByteBuffer open(AssetLocation location) throws IOException
+    {
+        return getGob(location.gobName).getData().slice(location.offset, location.length);
+    }
+
+    public synchronized Gob getGob(String gobName) throws IOException
+    {
+        Gob gob = gobs.get(gobName);
+        if (gob == null) {
+            gob = Gob.map(getGobFile(gobName));
+            gobs.put(gobName, gob);
+        }
+        return gob;
+    }
+
+    /**
+     * Gets the file of a GOB, e.g. to read assets from it with a StreamingGob rather than mapping all of it.
+     */
+    public File getGobFile(String gobName) throws IOException
+    {
+        File gobFile = gobFiles.get(gobName);
+        if (gobFile == null) {
+            throw new IOException("Unknown GOB file " + gobName);
+        }
+        return gobFile;
+    }
+
+    public int getNumAssets()
+    {
+        return locations.size();
+    }
+
+    private void addGob(File gobFile, Gob gob, List<AssetLocation> gobLocations)
+    {
+        gobFiles.put(gobFile.getName(), gobFile);
+        if (gob != null) {
+            gobs.put(gobFile.getName(), gob);
+        }
+        for (AssetLocation location : gobLocations) {
+            String name = location.getName();
+            List<AssetLocation> all = locations.get(name);
+            if (all == null) {
+                all = new ArrayList<AssetLocation>(1);
+                locations.put(name, all);
+            }
+            all.add(location);
+        }
+    }
+
+    private static void findGobFiles(File dataDir, List<File> gobFiles) throws IOException
+    {
+        findGobFiles(dataDir, gobFiles, new HashMap<String, File>());
+    }
+
+    private static void findGobFiles(File dir, List<File> gobFiles, Map<String, File> byName) throws IOException
+    {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findGobFiles(file, gobFiles, byName);
+            } else if (file.getName().toUpperCase().endsWith(".GOB")) {
+                File other = byName.put(file.getName(), file);
+                if (other != null) {
+                    throw new IOException("Two GOB files are called " + file.getName() + ": " + other + " and " + file);
+                }
+                gobFiles.add(file);
+            }
+        }
+    }
+
+    /**
+     * Indexes the lumps of one GOB file and the entries within each lump.
+     */
+    static List<AssetLocation> scanGob(String gobName, Gob gob, NameTable nameTable)
+    {
+        List<AssetLocation> gobLocations = new ArrayList<AssetLocation>();
+        int numLumps = gob.getNumEntries();
+        for (int lumpNum = 0; lumpNum < numLumps; ++lumpNum) {
+            String lumpName = gob.getEntryName(lumpNum, nameTable);
+            int lumpOffset = gob.getEntryOffset(lumpNum);
+            ByteBuffer lumpData = gob.getEntry(lumpNum);
+            gobLocations.add(new AssetLocation(gobName, lumpName, null, lumpOffset, lumpData.len));
+
+            if (!isLump(lumpData)) {
+                continue;
+            }
+            Lump lump = new Lump(lumpData);
+            int numEntries = lump.getNumEntries();
+            for (int entry = 0; entry < numEntries; ++entry) {
+                gobLocations.add(new AssetLocation(gobName, lumpName, lump.getEntryName(entry, nameTable),
+                                                   lumpOffset + lump.getEntryOffset(entry),
+                                                   lump.getEntryLength(entry)));
+            }
+        }
+        return gobLocations;
+    }
+
+    // Checks that a GOB entry looks like a lump, i.e. the header fits and every entry lies within it.
+    private static boolean isLump(ByteBuffer data)
+    {
+        if (data.len < 4) {
+            return false;
+        }
+        int numFiles = data.getLEInt(0);
+        if (numFiles < 0 || numFiles > (data.len - 4) / 0x40) {
+            return false;
+        }
+        for (int fileNo = 0; fileNo < numFiles; ++fileNo) {
+            int headerOffset = 4 + fileNo * 0x40;
+            int subOffset = data.getLEInt(headerOffset + 0x38);
+            int subLen = data.getLEInt(headerOffset + 0x3C);
+            if (subOffset < 0 || subLen < 0 || subOffset > data.len - subLen) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class ScanAllTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        ScanAllTask(List<GobScanTask> tasks)
+        {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute()
+        {
+            invokeAll(tasks);
+        }
+
+        private final List<GobScanTask> tasks;
+    }
+
+    private static class GobScanTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        GobScanTask(File gobFile, NameTable nameTable)
+        {
+            this.gobFile = gobFile;
+            this.nameTable = nameTable;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try {
+                gob = Gob.map(gobFile);
+                locations = scanGob(nameTable.intern(gobFile.getName()), gob, nameTable);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        final File gobFile;
+        final NameTable nameTable;
+        Gob gob;
+        List<AssetLocation> locations;
+        IOException error;
+    }
+
+    private final Map<String, List<AssetLocation>> locations = new HashMap<String, List<AssetLocation>>();
+    private final Map<String, File> gobFiles = new HashMap<String, File>();
+    private final Map<String, Gob> gobs = new HashMap<String, Gob>();
+}
@@ -0,0 +1,42 @@
+package net.ijbrown.snowdroid;
+
+/**
+ * Where an asset lives: the GOB file, the lump within it and the entry within the lump.
+ * For a lump itself the entryName is null.
+ */
+public class AssetLocation
+{
+    public AssetLocation(String gobName, String lumpName, String entryName, int offset, int length)
+    {
+        this.gobName = gobName;
+        this.lumpName = lumpName;
+        this.entryName = entryName;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getName()
+    {
+        return entryName == null ? lumpName : entryName;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(gobName).append(':').append(lumpName);
+        if (entryName != null) {
+            sb.append(':').append(entryName);
+        }
+        sb.append(" @").append(HexUtil.formatHex(offset)).append(", len ").append(length);
+        return sb.toString();
+    }
+
+    public final String gobName;
+    public final String lumpName;
+    public final String entryName;
+
+    // Offset from the start of the GOB file.
+    public final int offset;
+    public final int length;
+}
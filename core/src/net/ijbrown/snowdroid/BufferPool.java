@@ -0,0 +1,80 @@
+package net.ijbrown.snowdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of direct buffers, so that streaming reads do not allocate a new buffer per asset.
+ * Buffers are pooled in power of two size classes, and the pool holds on to at most maxPooledBytes
+ * of free buffers.
+ */
+public class BufferPool
+{
+    private static final int MIN_SIZE_CLASS = 12;   // 4KB
+    private static final int NUM_SIZE_CLASSES = 31 - MIN_SIZE_CLASS;
+
+    public BufferPool(long maxPooledBytes)
+    {
+        this.maxPooledBytes = maxPooledBytes;
+        freeLists = new ArrayList<List<java.nio.ByteBuffer>>(NUM_SIZE_CLASSES);
+        for (int i = 0; i < NUM_SIZE_CLASSES; ++i) {
+            freeLists.add(new ArrayList<java.nio.ByteBuffer>());
+        }
+    }
+
+    /**
+     * Gets a buffer with at least size bytes. The position is 0 and the limit is size.
+     */
+    public synchronized java.nio.ByteBuffer acquire(int size)
+    {
+        int sizeClass = sizeClass(size);
+        java.nio.ByteBuffer buffer;
+        if (sizeClass >= NUM_SIZE_CLASSES) {
+            // Too big to pool.
+            buffer = java.nio.ByteBuffer.allocateDirect(size);
+        } else {
+            List<java.nio.ByteBuffer> freeList = freeLists.get(sizeClass);
+            if (freeList.isEmpty()) {
+                buffer = java.nio.ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_CLASS));
+            } else {
+                buffer = freeList.remove(freeList.size() - 1);
+                pooledBytes -= buffer.capacity();
+            }
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after this.
+     */
+    public synchronized void release(java.nio.ByteBuffer buffer)
+    {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < NUM_SIZE_CLASSES && capacity == 1 << (sizeClass + MIN_SIZE_CLASS)
+                && pooledBytes + capacity <= maxPooledBytes) {
+            freeLists.get(sizeClass).add(buffer);
+            pooledBytes += capacity;
+        }
+    }
+
+    public synchronized long getPooledBytes()
+    {
+        return pooledBytes;
+    }
+
+    private static int sizeClass(int size)
+    {
+        int sizeClass = 0;
+        while (sizeClass < NUM_SIZE_CLASSES && (1 << (sizeClass + MIN_SIZE_CLASS)) < size) {
+            ++sizeClass;
+        }
+        return sizeClass;
+    }
+
+    private final long maxPooledBytes;
+    private final List<List<java.nio.ByteBuffer>> freeLists;
+    private long pooledBytes;
+}
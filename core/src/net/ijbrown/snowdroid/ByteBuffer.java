@@ -1,37 +1,129 @@
 package net.ijbrown.snowdroid;
 
+import java.nio.ByteOrder;
+
 /**
- * A range of bytes within a larger array of bytes.
+ * A range of bytes within a larger block of memory.
+ * The memory is a little endian java.nio.ByteBuffer, so it can be a byte array on the heap,
+ * native memory from a direct buffer or a memory mapped region of a file.
  */
 public class ByteBuffer
 {
     public ByteBuffer(byte[] data, int startOffset, int len){
-        this.data= data;
-        this.startOffset = startOffset;
-        this.len = len;
+        this(java.nio.ByteBuffer.wrap(data, startOffset, len));
+    }
+
+    public ByteBuffer(java.nio.ByteBuffer buffer){
+        // slice so that offset 0 is the current position of the buffer.
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.len = this.buffer.remaining();
+    }
+
+    public static ByteBuffer wrap(byte[] data)
+    {
+        return new ByteBuffer(data, 0, data.length);
+    }
+
+    /**
+     * Creates a buffer in native memory, which can be passed to GL or file channels without a copy.
+     */
+    public static ByteBuffer allocateDirect(int len)
+    {
+        return new ByteBuffer(java.nio.ByteBuffer.allocateDirect(len));
+    }
+
+    public boolean isDirect()
+    {
+        return buffer.isDirect();
+    }
+
+    /**
+     * Creates a view onto a sub range of this buffer. No data is copied.
+     */
+    public ByteBuffer slice(int offset, int sliceLen)
+    {
+        java.nio.ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + sliceLen);
+        return new ByteBuffer(dup);
+    }
+
+    /**
+     * Gets a little endian java.nio view of the whole range. The view has its own position and limit.
+     */
+    public java.nio.ByteBuffer asNioBuffer()
+    {
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
     }
 
     public byte getByte(int offset)
     {
-        return data[startOffset + offset];
+        return buffer.get(offset);
     }
 
     public int getUnsignedByte(int offset)
     {
-        return data[startOffset + offset] & 0xFF;
+        return buffer.get(offset) & 0xFF;
     }
 
     public int getLEInt(int offset)
     {
-        return DataUtil.getLEInt(data, startOffset + offset);
+        return buffer.getInt(offset);
     }
 
-    public short getLEShort(int offset){ return DataUtil.getLEShort(data, startOffset+offset);}
+    public long getLELong(int offset)
+    {
+        return buffer.getLong(offset);
+    }
+
+    public short getLEShort(int offset){ return buffer.getShort(offset);}
+
+    public int getLEUShort(int offset){ return buffer.getShort(offset) & 0xFFFF;}
+
+    public float getLEFloat(int offset){ return buffer.getFloat(offset);}
+
+    /**
+     * Copies count bytes starting at offset into dst.
+     */
+    public void getBytes(int offset, byte[] dst, int dstOffset, int count)
+    {
+        java.nio.ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.get(dst, dstOffset, count);
+    }
+
+    /**
+     * Copies count little endian shorts starting at offset into dst.
+     */
+    public void getLEShorts(int offset, short[] dst, int dstOffset, int count)
+    {
+        view(offset, count * 2).asShortBuffer().get(dst, dstOffset, count);
+    }
 
-    public int getLEUShort(int offset){ return DataUtil.getLEUShort(data, startOffset+offset);}
+    /**
+     * Copies count little endian ints starting at offset into dst.
+     */
+    public void getLEInts(int offset, int[] dst, int dstOffset, int count)
+    {
+        view(offset, count * 4).asIntBuffer().get(dst, dstOffset, count);
+    }
 
+    /**
+     * Copies count little endian floats starting at offset into dst.
+     */
+    public void getLEFloats(int offset, float[] dst, int dstOffset, int count)
+    {
+        view(offset, count * 4).asFloatBuffer().get(dst, dstOffset, count);
+    }
+
+    private java.nio.ByteBuffer view(int offset, int viewLen)
+    {
+        java.nio.ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + viewLen);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
 
-    public byte[] data;
-    public int startOffset;
+    private final java.nio.ByteBuffer buffer;
     public int len;
 }
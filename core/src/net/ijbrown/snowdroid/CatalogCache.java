@@ -0,0 +1,321 @@
+package net.ijbrown.snowdroid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent copy of an AssetCatalog, so that GOB and lump directories only need to be walked
+ * for GOB files that have changed since the cache was written.
+ *
+ * The file is little endian and laid out as follows:
+ *   0x00 int magic
+ *   0x04 int version
+ *   0x08 int number of GOBs
+ *   0x0C int number of asset records
+ *   0x10 int offset of the asset records
+ *   0x14 int offset of the string pool
+ *   0x18 int length of the string pool
+ *   0x1C int unused
+ *
+ * Then, starting at 0x20, the GOB table. Each GOB is 0x38 bytes:
+ *   0x00 NUL padded file name, 0x20 bytes
+ *   0x20 long file size
+ *   0x28 long last modified time
+ *   0x30 int  index of the first asset record
+ *   0x34 int  number of asset records
+ *
+ * Each asset record is 0x10 bytes:
+ *   0x00 int offset of the lump name in the string pool
+ *   0x04 int offset of the entry name in the string pool, or -1 for the lump itself
+ *   0x08 int offset from the start of the GOB file
+ *   0x0C int length
+ *
+ * The string pool holds NUL terminated names.
+ */
+public class CatalogCache
+{
+    private static final int MAGIC = 0x58494453;    // SDIX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 0x20;
+    private static final int GOB_SIZE = 0x38;
+    private static final int GOB_NAME_SIZE = 0x20;
+    private static final int RECORD_SIZE = 0x10;
+
+    /**
+     * Opens a cache file.
+     * If every one of gobFiles is in the cache and unchanged, the cache is memory mapped and used as is.
+     * Otherwise it is read into the heap, as it is about to be rewritten and a mapped file cannot be replaced
+     * on some platforms until the mapping has been garbage collected.
+     *
+     * @param nameTable the table the names of the cached locations are interned in.
+     * @return the cache, or null if the file does not exist or is not a valid cache.
+     */
+    public static CatalogCache load(File cacheFile, List<File> gobFiles, NameTable nameTable)
+    {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer gobTable = readGobTable(cacheFile);
+            if (gobTable == null) {
+                return null;
+            }
+            boolean upToDate = gobTable.getLEInt(0x08) == gobFiles.size();
+            for (int gobNum = 0; upToDate && gobNum < gobFiles.size(); ++gobNum) {
+                upToDate = isUpToDate(gobTable, gobNum, gobFiles.get(gobNum));
+            }
+            ByteBuffer data;
+            if (upToDate) {
+                data = FileUtil.map(cacheFile);
+            } else {
+                byte[] bytes = FileUtil.read(cacheFile);
+                data = new ByteBuffer(bytes, 0, bytes.length);
+            }
+            CatalogCache cache = new CatalogCache(data, upToDate, nameTable);
+            cache.validate();
+            return cache;
+        } catch (IOException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    // Reads just the header and the GOB table.
+    private static ByteBuffer readGobTable(File cacheFile) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                return null;
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            raf.readFully(header);
+            ByteBuffer headerBuffer = new ByteBuffer(header, 0, HEADER_SIZE);
+            if (headerBuffer.getLEInt(0) != MAGIC || headerBuffer.getLEInt(4) != VERSION) {
+                return null;
+            }
+            int numGobs = headerBuffer.getLEInt(0x08);
+            if (numGobs < 0 || HEADER_SIZE + (long) numGobs * GOB_SIZE > raf.length()) {
+                return null;
+            }
+            byte[] table = new byte[HEADER_SIZE + numGobs * GOB_SIZE];
+            raf.seek(0);
+            raf.readFully(table);
+            return new ByteBuffer(table, 0, table.length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isUpToDate(ByteBuffer data, int gobNum, File gobFile)
+    {
+        int gobOffset = HEADER_SIZE + gobNum * GOB_SIZE;
+        return DataUtil.compareName(data, gobOffset, GOB_NAME_SIZE, gobFile.getName()) == 0
+                && data.getLELong(gobOffset + 0x20) == gobFile.length()
+                && data.getLELong(gobOffset + 0x28) == gobFile.lastModified();
+    }
+
+    private CatalogCache(ByteBuffer data, boolean upToDate, NameTable nameTable)
+    {
+        this.data = data;
+        this.upToDate = upToDate;
+        this.nameTable = nameTable;
+        numGobs = data.getLEInt(0x08);
+        numRecords = data.getLEInt(0x0C);
+        recordsOffset = data.getLEInt(0x10);
+        stringsOffset = data.getLEInt(0x14);
+        stringsLength = data.getLEInt(0x18);
+    }
+
+    // Checks everything getLocations reads, so that a corrupt cache is rejected here rather than failing
+    // part way through building the catalog.
+    private void validate()
+    {
+        if (numGobs < 0 || numRecords < 0 || recordsOffset < 0 || stringsOffset < 0 || stringsLength < 0
+                || HEADER_SIZE + (long) numGobs * GOB_SIZE > data.len
+                || recordsOffset + (long) numRecords * RECORD_SIZE > data.len
+                || stringsOffset + (long) stringsLength > data.len) {
+            throw new IndexOutOfBoundsException("Truncated catalog cache");
+        }
+        for (int gobNum = 0; gobNum < numGobs; ++gobNum) {
+            int gobOffset = HEADER_SIZE + gobNum * GOB_SIZE;
+            long gobLength = data.getLELong(gobOffset + 0x20);
+            int firstRecord = data.getLEInt(gobOffset + 0x30);
+            int gobRecords = data.getLEInt(gobOffset + 0x34);
+            if (firstRecord < 0 || gobRecords < 0 || firstRecord > numRecords - gobRecords) {
+                throw new IndexOutOfBoundsException("Bad record range in catalog cache");
+            }
+            for (int record = firstRecord; record < firstRecord + gobRecords; ++record) {
+                int recordOffset = recordsOffset + record * RECORD_SIZE;
+                int lumpNameOffset = data.getLEInt(recordOffset);
+                int entryNameOffset = data.getLEInt(recordOffset + 4);
+                int offset = data.getLEInt(recordOffset + 8);
+                int length = data.getLEInt(recordOffset + 12);
+                if (!isStringOffset(lumpNameOffset) || (entryNameOffset != -1 && !isStringOffset(entryNameOffset))
+                        || offset < 0 || length < 0 || offset + (long) length > gobLength) {
+                    throw new IndexOutOfBoundsException("Bad asset record in catalog cache");
+                }
+            }
+        }
+    }
+
+    private boolean isStringOffset(int offset)
+    {
+        return offset >= 0 && offset < stringsLength;
+    }
+
+    /**
+     * True if the cache covered exactly the GOB files it was loaded for, and none of them had changed.
+     */
+    public boolean isUpToDate()
+    {
+        return upToDate;
+    }
+
+    /**
+     * Gets the cached locations for a GOB file.
+     *
+     * @return the locations, or null if the GOB is not in the cache or has changed since it was cached.
+     */
+    public List<AssetLocation> getLocations(File gobFile)
+    {
+        String gobName = gobFile.getName();
+        for (int gobNum = 0; gobNum < numGobs; ++gobNum) {
+            int gobOffset = HEADER_SIZE + gobNum * GOB_SIZE;
+            if (DataUtil.compareName(data, gobOffset, GOB_NAME_SIZE, gobName) != 0) {
+                continue;
+            }
+            if (!isUpToDate(data, gobNum, gobFile)) {
+                return null;
+            }
+            int firstRecord = data.getLEInt(gobOffset + 0x30);
+            int gobRecords = data.getLEInt(gobOffset + 0x34);
+            // Interned so that the names are shared with other GOBs and no Strings are created for names
+            // that have been seen before.
+            gobName = nameTable.intern(gobName);
+            List<AssetLocation> locations = new ArrayList<AssetLocation>(gobRecords);
+            for (int record = firstRecord; record < firstRecord + gobRecords; ++record) {
+                int recordOffset = recordsOffset + record * RECORD_SIZE;
+                String lumpName = getString(data.getLEInt(recordOffset));
+                int entryNameOffset = data.getLEInt(recordOffset + 4);
+                String entryName = entryNameOffset == -1 ? null : getString(entryNameOffset);
+                locations.add(new AssetLocation(gobName, lumpName, entryName, data.getLEInt(recordOffset + 8),
+                                                data.getLEInt(recordOffset + 12)));
+            }
+            return locations;
+        }
+        return null;
+    }
+
+    // The offset has been checked by validate.
+    private String getString(int offset)
+    {
+        return nameTable.intern(data, stringsOffset + offset, stringsLength - offset);
+    }
+
+    /**
+     * Writes a cache file. The file is written to a temporary file first and then renamed, so a
+     * partially written cache is never picked up.
+     *
+     * @param gobFiles  the GOB files, in catalog order.
+     * @param locations the locations within each GOB file, in the same order as gobFiles.
+     */
+    public static void write(File cacheFile, List<File> gobFiles, List<List<AssetLocation>> locations)
+            throws IOException
+    {
+        Map<String, Integer> stringOffsets = new HashMap<String, Integer>();
+        StringBuilder strings = new StringBuilder();
+        int totalRecords = 0;
+        for (List<AssetLocation> gobLocations : locations) {
+            for (AssetLocation location : gobLocations) {
+                addString(stringOffsets, strings, location.lumpName);
+                if (location.entryName != null) {
+                    addString(stringOffsets, strings, location.entryName);
+                }
+                ++totalRecords;
+            }
+        }
+
+        int recordsOffset = HEADER_SIZE + gobFiles.size() * GOB_SIZE;
+        int stringsOffset = recordsOffset + totalRecords * RECORD_SIZE;
+        int stringsLength = strings.length();
+
+        java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(stringsOffset + stringsLength);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(gobFiles.size()).putInt(totalRecords);
+        out.putInt(recordsOffset).putInt(stringsOffset).putInt(stringsLength).putInt(0);
+
+        int firstRecord = 0;
+        for (int gobNum = 0; gobNum < gobFiles.size(); ++gobNum) {
+            File gobFile = gobFiles.get(gobNum);
+            String gobName = gobFile.getName();
+            if (gobName.length() >= GOB_NAME_SIZE) {
+                throw new IOException("GOB file name too long to cache: " + gobName);
+            }
+            for (int i = 0; i < GOB_NAME_SIZE; ++i) {
+                out.put(i < gobName.length() ? (byte) gobName.charAt(i) : 0);
+            }
+            int gobRecords = locations.get(gobNum).size();
+            out.putLong(gobFile.length()).putLong(gobFile.lastModified());
+            out.putInt(firstRecord).putInt(gobRecords);
+            firstRecord += gobRecords;
+        }
+        for (List<AssetLocation> gobLocations : locations) {
+            for (AssetLocation location : gobLocations) {
+                out.putInt(stringOffsets.get(location.lumpName));
+                out.putInt(location.entryName == null ? -1 : stringOffsets.get(location.entryName));
+                out.putInt(location.offset).putInt(location.length);
+            }
+        }
+        for (int i = 0; i < stringsLength; ++i) {
+            out.put((byte) strings.charAt(i));
+        }
+        out.flip();
+
+        File cacheDir = cacheFile.getParentFile();
+        if (cacheDir != null && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Failed to create " + cacheDir);
+        }
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tempFile);
+        try {
+            while (out.hasRemaining()) {
+                os.getChannel().write(out);
+            }
+        } finally {
+            os.close();
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            // renameTo will not replace an existing file on some platforms.
+            cacheFile.delete();
+            if (!tempFile.renameTo(cacheFile)) {
+                throw new IOException("Failed to write " + cacheFile);
+            }
+        }
+    }
+
+    private static void addString(Map<String, Integer> stringOffsets, StringBuilder strings, String s)
+    {
+        if (!stringOffsets.containsKey(s)) {
+            stringOffsets.put(s, strings.length());
+            strings.append(s).append('\0');
+        }
+    }
+
+    private final ByteBuffer data;
+    private final boolean upToDate;
+    private final NameTable nameTable;
+    private final int numGobs;
+    private final int numRecords;
+    private final int recordsOffset;
+    private final int stringsOffset;
+    private final int stringsLength;
+}
@@ -0,0 +1,81 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Mesh;
+
+import java.nio.ShortBuffer;
+
+/**
+ * The data of a memory mapped cooked model, see CookedModels. Each mesh is copied straight from the mapped file
+ * into the buffers that are uploaded to GL.
+ */
+public class CookedModelData
+{
+    CookedModelData(ByteBuffer data)
+    {
+        this.data = data;
+        numMeshes = data.getLEInt(0x08);
+    }
+
+    public int getNumMeshes()
+    {
+        return numMeshes;
+    }
+
+    public int getNumTriangles()
+    {
+        return data.getLEInt(0x28);
+    }
+
+    public int getCacheMissesBefore()
+    {
+        return data.getLEInt(0x2C);
+    }
+
+    public int getCacheMissesAfter()
+    {
+        return data.getLEInt(0x30);
+    }
+
+    public int getNumStripIndices(int mesh)
+    {
+        return data.getLEInt(getEntry(mesh) + 0x10);
+    }
+
+    public int getNumTriangleIndices(int mesh)
+    {
+        return data.getLEInt(getEntry(mesh) + 0x14);
+    }
+
+    /**
+     * Creates a static mesh holding a mesh's vertices and indices, as MeshAssembler.toMesh would.
+     * This must be called on the GL thread.
+     */
+    public Mesh createMesh(int mesh)
+    {
+        int entry = getEntry(mesh);
+        boolean quantized = (data.getLEInt(entry) & CookedModels.FLAG_QUANTIZED) != 0;
+        int numBoneWeights = data.getLEInt(entry + 4);
+        int numVertices = data.getLEInt(entry + 8);
+        int vertexOffset = data.getLEInt(entry + 0x0C);
+        int numIndices = getNumStripIndices(mesh) + getNumTriangleIndices(mesh);
+        int indexOffset = data.getLEInt(entry + 0x18);
+        int vertexLength = numVertices * CookedModels.getVertexSize(quantized, numBoneWeights);
+
+        Mesh result = MeshAssembler.createMesh(quantized, numBoneWeights, numVertices, numIndices);
+        MeshAssembler.setVertices(result, data.slice(vertexOffset, vertexLength).asNioBuffer());
+        // Getting the buffer marks it as changed, so it is uploaded when the mesh is next bound.
+        ShortBuffer indices = result.getIndicesBuffer();
+        indices.clear();
+        indices.put(data.slice(indexOffset, numIndices * 2).asNioBuffer().asShortBuffer());
+        indices.flip();
+        return result;
+    }
+
+    private static int getEntry(int mesh)
+    {
+        return CookedModels.HEADER_SIZE + mesh * CookedModels.MESH_SIZE;
+    }
+
+    private final ByteBuffer data;
+    private final int numMeshes;
+}
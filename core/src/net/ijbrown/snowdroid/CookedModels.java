@@ -0,0 +1,225 @@
+package net.ijbrown.snowdroid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A directory of cooked models: the vertex and index buffers that VifReader assembles from a .vif, stored ready
+ * to upload, so that warm starts do not need to read any VIF commands.
+ *
+ * Each model is one little endian file laid out as follows:
+ *   0x00 int  magic
+ *   0x04 int  version
+ *   0x08 int  number of meshes
+ *   0x0C int  byte order of the vertex data, 0 for little endian and 1 for big endian
+ *   0x10 int  offset of the source .vif in its GOB
+ *   0x14 int  length of the source .vif
+ *   0x18 long hash of the source .vif
+ *   0x20 long the settings the model was read with, see VifReader
+ *   0x28 int  number of triangles
+ *   0x2C int  vertex cache misses before the triangles were reordered
+ *   0x30 int  vertex cache misses after the triangles were reordered
+ *   0x34 int  VifReader.MESH_VERSION of the code that assembled the meshes
+ *
+ * Then, starting at 0x38, a table with 0x20 bytes per mesh:
+ *   0x00 int flags, FLAG_QUANTIZED if the mesh is a QuantizedMesh
+ *   0x04 int number of bone weights per vertex
+ *   0x08 int number of vertices
+ *   0x0C int offset of the vertex data from the start of the file
+ *   0x10 int number of strip indices
+ *   0x14 int number of triangle indices
+ *   0x18 int offset of the index data from the start of the file
+ *   0x1C int unused
+ *
+ * The vertex data is the bytes of the mesh's vertex buffer, as MeshAssembler.getMeshVertices gives them in native
+ * byte order, and the index data is the strip indices followed by the triangle indices as shorts, padded to a
+ * multiple of 4 bytes.
+ * The skeleton is not stored; the bone weights are part of the vertices and the bones come from the .anm.
+ */
+public class CookedModels
+{
+    public static final int FLAG_QUANTIZED = 1;
+
+    private static final int MAGIC = 0x444D4453;    // SDMD
+    // The version of the file layout. Changes to the meshes themselves are covered by VifReader.MESH_VERSION.
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 0x38;
+    static final int MESH_SIZE = 0x20;
+
+    private static final int VERTEX_BYTE_ORDER = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0;
+
+    public CookedModels(File cookedDir)
+    {
+        this.cookedDir = cookedDir;
+    }
+
+    /**
+     * Opens the cooked copy of a model, memory mapping it.
+     *
+     * @param location   the location of the source .vif.
+     * @param sourceData the source .vif, used to check that the cooked copy is still valid.
+     * @param settings   the settings the model is being read with, see VifReader.
+     * @return the model data, or null if there is no valid cooked copy.
+     */
+    public CookedModelData load(AssetLocation location, ByteBuffer sourceData, long settings)
+    {
+        File file = getFile(location);
+        if (!isCooked(file, location, sourceData, settings)) {
+            return null;
+        }
+        try {
+            return new CookedModelData(FileUtil.map(file));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // As with cooked textures, only the header and mesh table are read to validate the file, so that it is not
+    // mapped if it is about to be replaced.
+    private static boolean isCooked(File file, AssetLocation location, ByteBuffer sourceData, long settings)
+    {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long fileLength = raf.length();
+                if (fileLength < HEADER_SIZE) {
+                    return false;
+                }
+                byte[] headerBytes = new byte[HEADER_SIZE];
+                raf.readFully(headerBytes);
+                ByteBuffer header = new ByteBuffer(headerBytes, 0, HEADER_SIZE);
+                if (header.getLEInt(0) != MAGIC || header.getLEInt(4) != VERSION
+                        || header.getLEInt(0x0C) != VERTEX_BYTE_ORDER || header.getLEInt(0x10) != location.offset
+                        || header.getLEInt(0x14) != location.length || header.getLELong(0x20) != settings
+                        || header.getLEInt(0x34) != VifReader.MESH_VERSION) {
+                    return false;
+                }
+                int numMeshes = header.getLEInt(0x08);
+                if (numMeshes < 0 || HEADER_SIZE + (long) numMeshes * MESH_SIZE > fileLength) {
+                    return false;
+                }
+                byte[] tableBytes = new byte[numMeshes * MESH_SIZE];
+                raf.readFully(tableBytes);
+                ByteBuffer table = new ByteBuffer(tableBytes, 0, tableBytes.length);
+                for (int mesh = 0; mesh < numMeshes; ++mesh) {
+                    int entry = mesh * MESH_SIZE;
+                    boolean quantized = (table.getLEInt(entry) & FLAG_QUANTIZED) != 0;
+                    int numBoneWeights = table.getLEInt(entry + 4);
+                    int numVertices = table.getLEInt(entry + 8);
+                    int numIndices = table.getLEInt(entry + 0x10) + table.getLEInt(entry + 0x14);
+                    if (numBoneWeights < 0 || numBoneWeights > 4 || numVertices < 0 || numIndices < 0) {
+                        return false;
+                    }
+                    long vertexLength = (long) numVertices * getVertexSize(quantized, numBoneWeights);
+                    if (!isInFile(table.getLEInt(entry + 0x0C), vertexLength, fileLength)
+                            || !isInFile(table.getLEInt(entry + 0x18), numIndices * 2L, fileLength)) {
+                        return false;
+                    }
+                }
+                return header.getLELong(0x18) == DataUtil.hashBytes(sourceData, 0, sourceData.len);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the cooked copy of a model. The file is written to a temporary file first and then renamed.
+     *
+     * @param meshes the assembled meshes of the model, in order.
+     */
+    public void cook(AssetLocation location, ByteBuffer sourceData, long settings, List<MeshAssembler> meshes,
+                     int cacheMissesBefore, int cacheMissesAfter) throws IOException
+    {
+        if (!cookedDir.isDirectory() && !cookedDir.mkdirs()) {
+            throw new IOException("Failed to create " + cookedDir);
+        }
+        int numTriangles = 0;
+        List<java.nio.ByteBuffer> meshData = new ArrayList<java.nio.ByteBuffer>(meshes.size() * 2);
+        int dataOffset = HEADER_SIZE + meshes.size() * MESH_SIZE;
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(dataOffset);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.position(HEADER_SIZE);
+        for (MeshAssembler mesh : meshes) {
+            numTriangles += mesh.getNumTriangles();
+            int numVertices = mesh.getNumVertices();
+            java.nio.ByteBuffer vertices = mesh.getMeshVertices();
+            int vertexLength = vertices.remaining();
+            short[] indices = mesh.getMeshIndices();
+            java.nio.ByteBuffer indexData = java.nio.ByteBuffer.allocate((indices.length * 2 + 3) & ~3)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            indexData.asShortBuffer().put(indices);
+            meshData.add(vertices);
+            meshData.add(indexData);
+
+            header.putInt(mesh.isQuantized() ? FLAG_QUANTIZED : 0).putInt(mesh.getNumBoneWeights());
+            header.putInt(numVertices).putInt(dataOffset);
+            dataOffset += vertexLength;
+            header.putInt(mesh.getNumStripIndices()).putInt(mesh.getNumTriangleIndices()).putInt(dataOffset);
+            header.putInt(0);
+            dataOffset += indexData.remaining();
+        }
+        header.position(0);
+        header.putInt(MAGIC).putInt(VERSION).putInt(meshes.size()).putInt(VERTEX_BYTE_ORDER);
+        header.putInt(location.offset).putInt(location.length);
+        header.putLong(DataUtil.hashBytes(sourceData, 0, sourceData.len)).putLong(settings);
+        header.putInt(numTriangles).putInt(cacheMissesBefore).putInt(cacheMissesAfter);
+        header.putInt(VifReader.MESH_VERSION);
+        header.clear();
+
+        write(getFile(location), header, meshData);
+    }
+
+    public File getFile(AssetLocation location)
+    {
+        return new File(cookedDir, location.gobName + "_" + location.lumpName + "_" + location.entryName + ".cmd");
+    }
+
+    static int getVertexSize(boolean quantized, int numBoneWeights)
+    {
+        return MeshAssembler.getVertexAttributes(quantized, numBoneWeights).vertexSize;
+    }
+
+    private static boolean isInFile(int offset, long length, long fileLength)
+    {
+        return offset >= 0 && offset + length <= fileLength;
+    }
+
+    private static void write(File file, java.nio.ByteBuffer header, List<java.nio.ByteBuffer> data)
+            throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tempFile);
+        try {
+            while (header.hasRemaining()) {
+                os.getChannel().write(header);
+            }
+            for (java.nio.ByteBuffer buffer : data) {
+                while (buffer.hasRemaining()) {
+                    os.getChannel().write(buffer);
+                }
+            }
+        } finally {
+            os.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // renameTo will not replace an existing file on some platforms.
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    private final File cookedDir;
+}
@@ -0,0 +1,136 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.TextureData;
+import com.badlogic.gdx.graphics.glutils.ETC1;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Texture data for a memory mapped cooked texture, see CookedTextures. Each mipmap level is uploaded straight
+ * from the mapped file.
+ */
+public class CookedTextureData implements TextureData
+{
+    CookedTextureData(ByteBuffer data)
+    {
+        this.data = data;
+        format = data.getLEInt(0x08);
+        width = data.getLEInt(0x0C);
+        height = data.getLEInt(0x10);
+        numLevels = data.getLEInt(0x14);
+    }
+
+    /**
+     * True if the GPU can use this texture. ETC1 needs the OES_compressed_ETC1_RGB8_texture extension.
+     */
+    public boolean isSupported()
+    {
+        return format != CookedTextures.FORMAT_ETC1
+                || Gdx.graphics.supportsExtension("OES_compressed_ETC1_RGB8_texture");
+    }
+
+    public int getNumLevels()
+    {
+        return numLevels;
+    }
+
+    /**
+     * The number of bytes uploaded to the GPU, over all levels.
+     */
+    public int getSizeInBytes()
+    {
+        int size = 0;
+        for (int level = 0; level < numLevels; ++level) {
+            size += data.getLEInt(0x30 + level * 0x10 + 4);
+        }
+        return size;
+    }
+
+    @Override
+    public TextureDataType getType()
+    {
+        return TextureDataType.Custom;
+    }
+
+    @Override
+    public boolean isPrepared()
+    {
+        return true;
+    }
+
+    @Override
+    public void prepare()
+    {
+    }
+
+    @Override
+    public Pixmap consumePixmap()
+    {
+        throw new GdxRuntimeException("Cooked textures do not have a Pixmap");
+    }
+
+    @Override
+    public boolean disposePixmap()
+    {
+        return false;
+    }
+
+    @Override
+    public void consumeCustomData(int target)
+    {
+        for (int level = 0; level < numLevels; ++level) {
+            int levelOffset = 0x30 + level * 0x10;
+            int offset = data.getLEInt(levelOffset);
+            int length = data.getLEInt(levelOffset + 4);
+            int levelWidth = data.getLEInt(levelOffset + 8);
+            int levelHeight = data.getLEInt(levelOffset + 12);
+            java.nio.ByteBuffer levelData = data.slice(offset, length).asNioBuffer();
+            if (format == CookedTextures.FORMAT_ETC1) {
+                Gdx.gl.glCompressedTexImage2D(target, level, ETC1.ETC1_RGB8_OES, levelWidth, levelHeight, 0, length,
+                                              levelData);
+            } else {
+                Gdx.gl.glTexImage2D(target, level, GL20.GL_RGBA, levelWidth, levelHeight, 0, GL20.GL_RGBA,
+                                    GL20.GL_UNSIGNED_BYTE, levelData);
+            }
+        }
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public Pixmap.Format getFormat()
+    {
+        return format == CookedTextures.FORMAT_ETC1 ? Pixmap.Format.RGB888 : Pixmap.Format.RGBA8888;
+    }
+
+    @Override
+    public boolean useMipMaps()
+    {
+        return numLevels > 1;
+    }
+
+    @Override
+    public boolean isManaged()
+    {
+        // The mapping stays valid, so the texture can be uploaded again after a context loss.
+        return true;
+    }
+
+    private final ByteBuffer data;
+    private final int format;
+    private final int width;
+    private final int height;
+    private final int numLevels;
+}
@@ -0,0 +1,326 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.glutils.ETC1;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A directory of cooked textures: decoded textures stored ready to upload, so that warm starts do not need
+ * to decode anything.
+ *
+ * Each texture is one little endian file laid out as follows:
+ *   0x00 int  magic
+ *   0x04 int  version
+ *   0x08 int  format, FORMAT_RGBA8888 or FORMAT_ETC1
+ *   0x0C int  width
+ *   0x10 int  height
+ *   0x14 int  number of mipmap levels
+ *   0x18 int  offset of the source .tex in its GOB
+ *   0x1C int  length of the source .tex
+ *   0x20 long hash of the source .tex
+ *   0x28 int  TexReader.DECODER_VERSION of the decoder that decoded the texture
+ *   0x2C int  unused
+ *
+ * Then, starting at 0x30, a table with 0x10 bytes per mipmap level:
+ *   0x00 int offset of the level's data from the start of the file
+ *   0x04 int length of the level's data
+ *   0x08 int width
+ *   0x0C int height
+ *
+ * RGBA8888 data is stored as R, G, B, A bytes, rows top to bottom, ready for glTexImage2D.
+ * ETC1 data is ready for glCompressedTexImage2D.
+ */
+public class CookedTextures
+{
+    public static final int FORMAT_RGBA8888 = 0;
+    public static final int FORMAT_ETC1 = 1;
+
+    private static final int MAGIC = 0x58544453;    // SDTX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 0x30;
+    private static final int LEVEL_SIZE = 0x10;
+
+    // Textures are cooked in batches of this many, so that the decoded pixels of every texture in the
+    // game are not held at once.
+    private static final int COOK_BATCH = 32;
+
+    public CookedTextures(File cookedDir)
+    {
+        this.cookedDir = cookedDir;
+    }
+
+    /**
+     * Opens the cooked copy of a texture, memory mapping it.
+     *
+     * @param location   the location of the source .tex.
+     * @param sourceData the source .tex, used to check that the cooked copy is still valid.
+     * @return the texture data, or null if there is no valid cooked copy.
+     */
+    public CookedTextureData load(AssetLocation location, ByteBuffer sourceData)
+    {
+        File file = getFile(location);
+        if (!isCooked(file, location, sourceData)) {
+            return null;
+        }
+        try {
+            return new CookedTextureData(FileUtil.map(file));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * True if there is a cooked copy of the texture which matches the source.
+     */
+    public boolean isCooked(AssetLocation location, ByteBuffer sourceData)
+    {
+        return isCooked(getFile(location), location, sourceData);
+    }
+
+    // Only the header is read to validate the file, it is not mapped as it may be about to be replaced
+    // and a mapped file can not be replaced on some platforms until the mapping has been garbage collected.
+    private static boolean isCooked(File file, AssetLocation location, ByteBuffer sourceData)
+    {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long fileLength = raf.length();
+                if (fileLength < HEADER_SIZE) {
+                    return false;
+                }
+                byte[] headerBytes = new byte[HEADER_SIZE];
+                raf.readFully(headerBytes);
+                ByteBuffer header = new ByteBuffer(headerBytes, 0, HEADER_SIZE);
+                if (header.getLEInt(0) != MAGIC || header.getLEInt(4) != VERSION
+                        || header.getLEInt(0x18) != location.offset || header.getLEInt(0x1C) != location.length
+                        || header.getLEInt(0x28) != TexReader.DECODER_VERSION) {
+                    return false;
+                }
+                int numLevels = header.getLEInt(0x14);
+                if (numLevels < 1 || HEADER_SIZE + (long) numLevels * LEVEL_SIZE > fileLength) {
+                    return false;
+                }
+                byte[] tableBytes = new byte[numLevels * LEVEL_SIZE];
+                raf.readFully(tableBytes);
+                ByteBuffer table = new ByteBuffer(tableBytes, 0, tableBytes.length);
+                for (int level = 0; level < numLevels; ++level) {
+                    int offset = table.getLEInt(level * LEVEL_SIZE);
+                    int length = table.getLEInt(level * LEVEL_SIZE + 4);
+                    if (offset < 0 || length < 0 || (long) offset + length > fileLength) {
+                        return false;
+                    }
+                }
+                return header.getLELong(0x20) == DataUtil.hashBytes(sourceData, 0, sourceData.len);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Cooks every texture in the catalog that does not already have a valid cooked copy.
+     * Textures are decoded in parallel on the worker pool.
+     *
+     * @param etc1           if set, opaque textures are stored ETC1 compressed. This needs the gdx native library.
+     * @param skipPalletised if set, palletised textures are not cooked, as they are uploaded as an IndexedTexture
+     *                       rather than through the TextureCache.
+     * @return the number of textures cooked.
+     */
+    public int cookAll(AssetCatalog catalog, boolean etc1, boolean skipPalletised) throws IOException
+    {
+        if (!cookedDir.isDirectory() && !cookedDir.mkdirs()) {
+            throw new IOException("Failed to create " + cookedDir);
+        }
+        List<AssetLocation> locations = catalog.findAllWithExtension(".tex");
+        TexReader texReader = new TexReader();
+        int numCooked = 0;
+        for (int start = 0; start < locations.size(); start += COOK_BATCH) {
+            List<AssetLocation> batch = new ArrayList<AssetLocation>(COOK_BATCH);
+            List<ByteBuffer> batchData = new ArrayList<ByteBuffer>(COOK_BATCH);
+            for (int i = start; i < Math.min(start + COOK_BATCH, locations.size()); ++i) {
+                AssetLocation location = locations.get(i);
+                ByteBuffer sourceData = catalog.open(location);
+                if (!isCooked(location, sourceData) && !(skipPalletised && texReader.isPalletised(sourceData))) {
+                    batch.add(location);
+                    batchData.add(sourceData);
+                }
+            }
+            List<DecodedTexture> decoded = TexReader.decodeAll(batchData);
+            for (int i = 0; i < batch.size(); ++i) {
+                if (decoded.get(i) != null) {
+                    cook(batch.get(i), batchData.get(i), decoded.get(i), etc1);
+                    ++numCooked;
+                }
+            }
+        }
+        return numCooked;
+    }
+
+    /**
+     * Writes the cooked copy of a texture. The file is written to a temporary file first and then renamed.
+     */
+    public void cook(AssetLocation location, ByteBuffer sourceData, DecodedTexture decoded, boolean etc1)
+            throws IOException
+    {
+        List<DecodedTexture> levels = buildMipmaps(decoded);
+        int format = etc1 && isOpaque(decoded) ? FORMAT_ETC1 : FORMAT_RGBA8888;
+
+        List<java.nio.ByteBuffer> levelData = new ArrayList<java.nio.ByteBuffer>(levels.size());
+        List<ETC1.ETC1Data> etc1Data = new ArrayList<ETC1.ETC1Data>();
+        try {
+            for (DecodedTexture level : levels) {
+                if (format == FORMAT_ETC1) {
+                    ETC1.ETC1Data compressed = encodeETC1(level);
+                    etc1Data.add(compressed);
+                    java.nio.ByteBuffer data = compressed.compressedData.duplicate();
+                    data.position(compressed.dataOffset);
+                    levelData.add(data);
+                } else {
+                    java.nio.ByteBuffer data = java.nio.ByteBuffer.allocate(level.getSizeInBytes());
+                    data.order(ByteOrder.BIG_ENDIAN).asIntBuffer().put(level.pixels);
+                    levelData.add(data);
+                }
+            }
+            write(getFile(location), format, decoded, location, sourceData, levels, levelData);
+        } finally {
+            for (ETC1.ETC1Data compressed : etc1Data) {
+                compressed.dispose();
+            }
+        }
+    }
+
+    public File getFile(AssetLocation location)
+    {
+        return new File(cookedDir, location.gobName + "_" + location.lumpName + "_" + location.entryName + ".ctx");
+    }
+
+    private static void write(File file, int format, DecodedTexture decoded, AssetLocation location,
+                              ByteBuffer sourceData, List<DecodedTexture> levels,
+                              List<java.nio.ByteBuffer> levelData) throws IOException
+    {
+        int dataOffset = HEADER_SIZE + levels.size() * LEVEL_SIZE;
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(dataOffset);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(format).putInt(decoded.width).putInt(decoded.height);
+        header.putInt(levels.size()).putInt(location.offset).putInt(location.length);
+        header.putLong(DataUtil.hashBytes(sourceData, 0, sourceData.len));
+        header.putInt(TexReader.DECODER_VERSION).putInt(0);
+        for (int level = 0; level < levels.size(); ++level) {
+            int length = levelData.get(level).remaining();
+            header.putInt(dataOffset).putInt(length);
+            header.putInt(levels.get(level).width).putInt(levels.get(level).height);
+            dataOffset += length;
+        }
+        header.flip();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tempFile);
+        try {
+            while (header.hasRemaining()) {
+                os.getChannel().write(header);
+            }
+            for (java.nio.ByteBuffer data : levelData) {
+                while (data.hasRemaining()) {
+                    os.getChannel().write(data);
+                }
+            }
+        } finally {
+            os.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // renameTo will not replace an existing file on some platforms.
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    // Builds the mipmap chain with a 2x2 box filter. GL ES 2 can not mipmap textures whose sides
+    // are not powers of two, so those only get the one level.
+    private static List<DecodedTexture> buildMipmaps(DecodedTexture decoded)
+    {
+        List<DecodedTexture> levels = new ArrayList<DecodedTexture>();
+        levels.add(decoded);
+        if (!isPowerOfTwo(decoded.width) || !isPowerOfTwo(decoded.height)) {
+            return levels;
+        }
+        DecodedTexture level = decoded;
+        while (level.width > 1 || level.height > 1) {
+            int w = Math.max(1, level.width / 2);
+            int h = Math.max(1, level.height / 2);
+            int[] pixels = new int[w * h];
+            for (int y = 0; y < h; ++y) {
+                int y0 = Math.min(y * 2, level.height - 1);
+                int y1 = Math.min(y * 2 + 1, level.height - 1);
+                for (int x = 0; x < w; ++x) {
+                    int x0 = Math.min(x * 2, level.width - 1);
+                    int x1 = Math.min(x * 2 + 1, level.width - 1);
+                    pixels[y * w + x] = average(level.pixels[y0 * level.width + x0],
+                                                level.pixels[y0 * level.width + x1],
+                                                level.pixels[y1 * level.width + x0],
+                                                level.pixels[y1 * level.width + x1]);
+                }
+            }
+            level = new DecodedTexture(w, h, pixels);
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    private static int average(int p0, int p1, int p2, int p3)
+    {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((p0 >>> shift) & 0xFF) + ((p1 >>> shift) & 0xFF) + ((p2 >>> shift) & 0xFF)
+                    + ((p3 >>> shift) & 0xFF);
+            result |= ((sum + 2) >> 2) << shift;
+        }
+        return result;
+    }
+
+    private static boolean isPowerOfTwo(int value)
+    {
+        return (value & (value - 1)) == 0;
+    }
+
+    private static boolean isOpaque(DecodedTexture decoded)
+    {
+        for (int pixel : decoded.pixels) {
+            if ((pixel & 0xFF) != 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ETC1.ETC1Data encodeETC1(DecodedTexture level)
+    {
+        Pixmap rgba = level.toPixmap();
+        Pixmap rgb = new Pixmap(level.width, level.height, Pixmap.Format.RGB888);
+        Pixmap.Blending blending = Pixmap.getBlending();
+        Pixmap.setBlending(Pixmap.Blending.None);
+        rgb.drawPixmap(rgba, 0, 0);
+        Pixmap.setBlending(blending);
+        rgba.dispose();
+        try {
+            return ETC1.encodeImage(rgb);
+        } finally {
+            rgb.dispose();
+        }
+    }
+
+    private final File cookedDir;
+}
@@ -22,13 +22,127 @@ public class DataUtil
 {
     public static String collectString(byte[] fileData, int headerOffset)
     {
-        String s = "";
-        int i=headerOffset;
-        while (fileData[i] != 0){
-            s += (char)fileData[i];
-            ++i;
+        int len = 0;
+        while (fileData[headerOffset + len] != 0){
+            ++len;
         }
-        return s;
+        char[] chars = new char[len];
+        for (int i = 0; i < len; ++i){
+            chars[i] = (char)(fileData[headerOffset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    public static String collectString(ByteBuffer buffer, int headerOffset)
+    {
+        return collectString(buffer, headerOffset, buffer.len - headerOffset);
+    }
+
+    /**
+     * Reads a NUL terminated string of at most maxLen bytes.
+     */
+    public static String collectString(ByteBuffer buffer, int headerOffset, int maxLen)
+    {
+        int len = nameLength(buffer, headerOffset, maxLen);
+        char[] chars = new char[len];
+        for (int i = 0; i < len; ++i){
+            chars[i] = (char)buffer.getUnsignedByte(headerOffset + i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the length of a NUL terminated name of at most maxLen bytes.
+     */
+    public static int nameLength(ByteBuffer buffer, int offset, int maxLen)
+    {
+        int len = 0;
+        while (len < maxLen && buffer.getByte(offset + len) != 0){
+            ++len;
+        }
+        return len;
+    }
+
+    /**
+     * Hashes a NUL terminated name of at most maxLen bytes in place.
+     * Gives the same result as hashName(String) for the equivalent String.
+     */
+    public static int hashName(ByteBuffer buffer, int offset, int maxLen)
+    {
+        int hash = 0;
+        for (int i = 0; i < maxLen; ++i){
+            int b = buffer.getUnsignedByte(offset + i);
+            if (b == 0){
+                break;
+            }
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    public static int hashName(String name)
+    {
+        int hash = 0;
+        int len = name.length();
+        for (int i = 0; i < len; ++i){
+            hash = 31 * hash + (name.charAt(i) & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of a range of bytes, used to check that a cooked asset still matches its source.
+     */
+    public static long hashBytes(ByteBuffer buffer, int offset, int len)
+    {
+        long hash = 0xcbf29ce484222325L;
+        byte[] chunk = new byte[Math.min(len, 0x4000)];
+        while (len > 0) {
+            int count = Math.min(len, chunk.length);
+            buffer.getBytes(offset, chunk, 0, count);
+            for (int i = 0; i < count; ++i){
+                hash ^= chunk[i] & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+            offset += count;
+            len -= count;
+        }
+        return hash;
+    }
+
+    /**
+     * Compares a NUL terminated name of at most maxLen bytes with a String, without allocating.
+     * Bytes are compared unsigned.
+     */
+    public static int compareName(ByteBuffer buffer, int offset, int maxLen, String name)
+    {
+        int nameLen = name.length();
+        for (int i = 0; i < maxLen; ++i){
+            int b = buffer.getUnsignedByte(offset + i);
+            int c = i < nameLen ? name.charAt(i) : 0;
+            if (b != c){
+                return b - c;
+            }
+            if (b == 0){
+                return 0;
+            }
+        }
+        return nameLen > maxLen ? -1 : 0;
+    }
+
+    /**
+     * Compares two NUL terminated names of at most maxLen bytes in place.
+     */
+    public static int compareNames(ByteBuffer bufferA, int offsetA, ByteBuffer bufferB, int offsetB, int maxLen)
+    {
+        for (int i = 0; i < maxLen; ++i){
+            int a = bufferA.getUnsignedByte(offsetA + i);
+            int b = bufferB.getUnsignedByte(offsetB + i);
+            if (a != b || a == 0){
+                return a - b;
+            }
+        }
+        return 0;
     }
 
     public static float getLEFloat(byte[] data, int offset) {
@@ -0,0 +1,40 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Pixmap;
+
+import java.nio.ByteOrder;
+
+/**
+ * A decoded texture. Each pixel is a packed RGBA8888 int, rows are stored top to bottom.
+ */
+public class DecodedTexture
+{
+    public DecodedTexture(int width, int height, int[] pixels)
+    {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Creates a Pixmap, copying all the pixels into its native memory in one go.
+     */
+    public Pixmap toPixmap()
+    {
+        Pixmap pixmap = new Pixmap(width, height, Pixmap.Format.RGBA8888);
+        // RGBA8888 stores the bytes in R, G, B, A order, which is a big endian int.
+        java.nio.ByteBuffer pixmapData = pixmap.getPixels().duplicate();
+        pixmapData.clear();
+        pixmapData.order(ByteOrder.BIG_ENDIAN).asIntBuffer().put(pixels, 0, width * height);
+        return pixmap;
+    }
+
+    public int getSizeInBytes()
+    {
+        return width * height * 4;
+    }
+
+    public final int width;
+    public final int height;
+    public final int[] pixels;
+}
@@ -0,0 +1,152 @@
+package net.ijbrown.snowdroid;
+
+/**
+ * A compact directory of named entries within a buffer.
+ * Each entry is stored as a name (raw bytes, NUL padded to a fixed stride), an offset and a length,
+ * held in parallel arrays. Once sorted the entries can be binary searched by name, so no map
+ * entries or Strings are created per entry.
+ */
+public class DirectoryIndex
+{
+    public DirectoryIndex(int capacity, int nameStride)
+    {
+        this.nameStride = nameStride;
+        names = new byte[capacity * nameStride];
+        nameBuffer = new ByteBuffer(names, 0, names.length);
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Adds an entry. The name is read as a NUL terminated string at nameOffset within buffer.
+     */
+    public void add(ByteBuffer buffer, int nameOffset, int offset, int length)
+    {
+        int base = numEntries * nameStride;
+        for (int i = 0; i < nameStride; ++i) {
+            byte b = buffer.getByte(nameOffset + i);
+            if (b == 0) {
+                break;
+            }
+            names[base + i] = b;
+        }
+        offsets[numEntries] = offset;
+        lengths[numEntries] = length;
+        ++numEntries;
+    }
+
+    /**
+     * Sorts the entries by name. Must be called after the last add and before find.
+     */
+    public void sort()
+    {
+        if (numEntries > 1) {
+            quickSort(0, numEntries - 1);
+        }
+    }
+
+    /**
+     * Returns the index of the entry with the given name, or -1 if there is none.
+     * Does not allocate.
+     */
+    public int find(String name)
+    {
+        int low = 0;
+        int high = numEntries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = DataUtil.compareName(nameBuffer, mid * nameStride, nameStride, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int size()
+    {
+        return numEntries;
+    }
+
+    public int getOffset(int entry)
+    {
+        return offsets[entry];
+    }
+
+    public int getLength(int entry)
+    {
+        return lengths[entry];
+    }
+
+    public String getName(int entry)
+    {
+        return DataUtil.collectString(nameBuffer, entry * nameStride, nameStride);
+    }
+
+    /**
+     * Gets the name of an entry via a name table, so that no String is created if the name has been seen before.
+     */
+    public String getName(int entry, NameTable nameTable)
+    {
+        return nameTable.intern(nameBuffer, entry * nameStride, nameStride);
+    }
+
+    public int getNameHash(int entry)
+    {
+        return DataUtil.hashName(nameBuffer, entry * nameStride, nameStride);
+    }
+
+    private void quickSort(int low, int high)
+    {
+        while (low < high) {
+            int pivot = (low + high) >>> 1;
+            swap(pivot, high);
+            int store = low;
+            for (int i = low; i < high; ++i) {
+                if (DataUtil.compareNames(nameBuffer, i * nameStride, nameBuffer, high * nameStride, nameStride) < 0) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, high);
+            // Recurse into the smaller half to bound the stack depth.
+            if (store - low < high - store) {
+                quickSort(low, store - 1);
+                low = store + 1;
+            } else {
+                quickSort(store + 1, high);
+                high = store - 1;
+            }
+        }
+    }
+
+    private void swap(int a, int b)
+    {
+        if (a == b) {
+            return;
+        }
+        int baseA = a * nameStride;
+        int baseB = b * nameStride;
+        for (int i = 0; i < nameStride; ++i) {
+            byte t = names[baseA + i];
+            names[baseA + i] = names[baseB + i];
+            names[baseB + i] = t;
+        }
+        int t = offsets[a];
+        offsets[a] = offsets[b];
+        offsets[b] = t;
+        t = lengths[a];
+        lengths[a] = lengths[b];
+        lengths[b] = t;
+    }
+
+    private final int nameStride;
+    private final byte[] names;
+    private final ByteBuffer nameBuffer;
+    private final int[] offsets;
+    private final int[] lengths;
+    private int numEntries;
+}
@@ -4,6 +4,9 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by Ian on 29/09/2014.
@@ -29,4 +32,21 @@ public class FileUtil
         }
         return fileData;
     }
+
+    /**
+     * Memory maps a file read-only. Pages are only loaded by the OS when they are touched,
+     * so this is much cheaper than read() for large files of which only a small part is used.
+     * The mapping remains valid after the underlying channel is closed.
+     */
+    public static ByteBuffer map(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ByteBuffer(mapped);
+        } finally {
+            raf.close();
+        }
+    }
 }
@@ -16,18 +16,23 @@
 package net.ijbrown.snowdroid;
 
 /**
- * A GIF tag.
+ * A GIF tag. An instance can be re-used to parse any number of tags.
  */
 public class GIFTag
 {
     public void parse(ByteBuffer data, int idx)
     {
-        int low32 = data.getLEInt(idx);
+        parse(data.getLEInt(idx), data.getLEInt(idx + 4), data.getLEInt(idx + 8), data.getLEInt(idx + 12));
+    }
+
+    /**
+     * Parses a tag given as four little endian 32 bit words, lowest first.
+     */
+    public void parse(int low32, int next32, int regs64, int regs96)
+    {
         nloop = low32 & 0x7FFF;
         eop = (low32 & 0x8000) == 0x8000;
 
-        int next32 = data.getLEInt(idx + 4);
-
         // bit 32 is bit 0 of next 32
         pre = ((next32 >> (46 - 32)) & 1) == 1;
         // prim 11 bits 47 - 57
@@ -38,10 +43,7 @@ public class GIFTag
         if (0 == nreg){
             nreg = 16;
         }
-        int regs64 = data.getLEInt(idx + 8);
-        int regs96 = data.getLEInt(idx + 12);
 
-        regs = new int[nreg];
         for (int reg=0; reg < nreg; ++reg){
             int rgs = reg > 7 ? regs96 : regs64;
             regs[reg] = (rgs >> ((reg & 7) * 4)) & 0x0f;
@@ -53,6 +55,9 @@ public class GIFTag
         if (2 == flg){
             // IMAGE mode
             return (nloop+1)*0x10;
+        } else if (1 == flg){
+            // REGLIST mode, two 64 bit registers per quadword
+            return ((nloop*nreg+1)/2+1)*0x10;
         } else {
             return (nloop*nreg+1)*0x10;
         }
@@ -102,5 +107,5 @@ public class GIFTag
     int prim;
     int flg;
     int nreg;
-    int regs[];
+    final int regs[] = new int[16];
 }
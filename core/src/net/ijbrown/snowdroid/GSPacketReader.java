@@ -0,0 +1,126 @@
+package net.ijbrown.snowdroid;
+
+/**
+ * Walks a GS packet, tracking the transfer registers written by A+D data and
+ * passing every IMAGE transfer to a listener.
+ * An instance can be re-used, but is not thread safe.
+ */
+public class GSPacketReader
+{
+    public interface TransferListener
+    {
+        /**
+         * Called for each IMAGE segment. A transfer may be split over several segments,
+         * firstPixel is the index within the rrw x rrh transfer rectangle of the first pixel in this one.
+         *
+         * @param reader the reader, holding the register state for the transfer.
+         * @param data the packet.
+         * @param offset the offset of the image data in the packet.
+         * @param length the length of the image data in bytes.
+         * @param firstPixel the pixel index within the transfer that the data starts at.
+         */
+        void imageTransfer(GSPacketReader reader, ByteBuffer data, int offset, int length, int firstPixel);
+    }
+
+    private static final int REG_A_D = 0x0E;
+
+    private static final int BITBLTBUF = 0x50;
+    private static final int TRXPOS = 0x51;
+    private static final int TRXREG = 0x52;
+    private static final int TRXDIR = 0x53;
+
+    private final GIFTag gifTag = new GIFTag();
+
+    // BITBLTBUF
+    int dbp;
+    int dbw;
+    int dpsm;
+
+    // TRXPOS
+    int dsax;
+    int dsay;
+
+    // TRXREG
+    int rrw;
+    int rrh;
+
+    // Number of bytes of the current transfer already seen.
+    private int transferred;
+
+    /**
+     * Walks the packet from startOffset up to the GIF tag that ends it, the one with EOP set, or to the end of
+     * the buffer if no tag has EOP set.
+     */
+    public void read(ByteBuffer data, int startOffset, TransferListener listener)
+    {
+        dbp = dbw = dpsm = 0;
+        dsax = dsay = 0;
+        rrw = rrh = 0;
+        transferred = 0;
+
+        int endIndex = data.len;
+        int curIdx = startOffset;
+        while (curIdx <= endIndex - 0x10) {
+            gifTag.parse(data, curIdx);
+            int dataIdx = curIdx + 0x10;
+            switch (gifTag.flg) {
+                case 0:
+                    readPacked(data, dataIdx, endIndex);
+                    break;
+                case 2:
+                    int length = Math.min(gifTag.nloop * 0x10, endIndex - dataIdx);
+                    if (length > 0) {
+                        listener.imageTransfer(this, data, dataIdx, length, transferred / 4);
+                        transferred += length;
+                    }
+                    break;
+                default:
+                    // Nothing else affects a texture upload.
+                    break;
+            }
+            if (gifTag.eop) {
+                break;
+            }
+            curIdx += gifTag.getLength();
+        }
+    }
+
+    private void readPacked(ByteBuffer data, int idx, int endIndex)
+    {
+        for (int loop = 0; loop < gifTag.nloop; ++loop) {
+            for (int reg = 0; reg < gifTag.nreg; ++reg, idx += 0x10) {
+                if (idx > endIndex - 0x10) {
+                    return;
+                }
+                if (gifTag.regs[reg] == REG_A_D) {
+                    writeRegister(data.getUnsignedByte(idx + 8), data.getLEInt(idx), data.getLEInt(idx + 4));
+                }
+            }
+        }
+    }
+
+    private void writeRegister(int address, int low32, int high32)
+    {
+        switch (address) {
+            case BITBLTBUF:
+                dbp = high32 & 0x3FFF;
+                dbw = (high32 >> 16) & 0x3F;
+                dpsm = (high32 >> 24) & 0x3F;
+                break;
+            case TRXPOS:
+                dsax = high32 & 0x7FF;
+                dsay = (high32 >> 16) & 0x7FF;
+                break;
+            case TRXREG:
+                rrw = low32 & 0xFFF;
+                rrh = high32 & 0xFFF;
+                break;
+            case TRXDIR:
+                // Activates a new transfer.
+                transferred = 0;
+                break;
+            default:
+                break;
+        }
+    }
+}
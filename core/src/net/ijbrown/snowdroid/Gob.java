@@ -1,44 +1,145 @@
 package net.ijbrown.snowdroid;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * A GOB file which is a collection of Lump files.
+ * The directory is only indexed when it is first needed, so opening a GOB is cheap.
  */
 public class Gob
 {
+    // Each directory record is 0x28 bytes: a 0x20 byte name, then the offset and length of the lump.
+    // The directory is terminated by a record with an empty name.
+    static final int RECORD_SIZE = 0x28;
+    private static final int NAME_SIZE = 0x20;
+
     public Gob(byte[] data)
+    {
+        this(new ByteBuffer(data, 0, data.length));
+    }
+
+    public Gob(ByteBuffer data)
     {
         this.data = data;
-        buildDirectory();
     }
 
+    /**
+     * Opens a GOB file by memory mapping it rather than reading it into the heap.
+     * The entries returned by findEntry are slices of the mapped region.
+     */
+    public static Gob map(File file) throws IOException
+    {
+        return new Gob(FileUtil.map(file));
+    }
+
+    /**
+     * Finds a lump by name. The lookup itself does not allocate, and the slice for an entry is only
+     * created the first time it is asked for.
+     */
     public ByteBuffer findEntry(String name)
     {
-        return directory.get(name);
+        int entry = getDirectory().find(name);
+        return entry < 0 ? null : getEntry(entry);
+    }
+
+    public int getNumEntries()
+    {
+        return getDirectory().size();
     }
 
-    public byte[] getData()
+    public String getEntryName(int entry)
+    {
+        return getDirectory().getName(entry);
+    }
+
+    /**
+     * Gets the name of an entry via a name table, so that no String is created if the name has been seen before.
+     */
+    public String getEntryName(int entry, NameTable nameTable)
+    {
+        return getDirectory().getName(entry, nameTable);
+    }
+
+    /**
+     * Gets the offset of an entry relative to the start of the GOB file.
+     */
+    public int getEntryOffset(int entry)
+    {
+        return getDirectory().getOffset(entry);
+    }
+
+    public int getEntryLength(int entry)
+    {
+        return getDirectory().getLength(entry);
+    }
+
+    public synchronized ByteBuffer getEntry(int entry)
+    {
+        DirectoryIndex index = getDirectory();
+        if (entryBuffers[entry] == null) {
+            entryBuffers[entry] = data.slice(index.getOffset(entry), index.getLength(entry));
+        }
+        return entryBuffers[entry];
+    }
+
+    public ByteBuffer getData()
     {
         return data;
     }
 
-    public void buildDirectory()
+    public synchronized void buildDirectory()
     {
-        directory = new HashMap<String, ByteBuffer>();
-        int offset=0;
-        String lmpName = DataUtil.collectString(data, offset);
-        while (!lmpName.isEmpty()){
-            int lmpDataOffset = DataUtil.getLEInt(data, offset + 0x20);
+        DirectoryIndex index = readDirectory(data, countRecords(data, data.len / RECORD_SIZE), data.len);
+        directory = index;
+        entryBuffers = new ByteBuffer[index.size()];
+    }
 
-            directory.put(lmpName, new ByteBuffer(data, lmpDataOffset, data.length - lmpDataOffset));
+    /**
+     * Counts the directory records before the terminating one, which has an empty name, looking at no more than
+     * maxRecords.
+     */
+    static int countRecords(ByteBuffer records, int maxRecords)
+    {
+        int numRecords = 0;
+        while (numRecords < maxRecords && records.getByte(numRecords * RECORD_SIZE) != 0) {
+            ++numRecords;
+        }
+        return numRecords;
+    }
+
+    /**
+     * Indexes the first numRecords directory records of a GOB file of fileLength bytes.
+     * A record whose lump does not lie within the file is reported and left out.
+     */
+    static DirectoryIndex readDirectory(ByteBuffer records, int numRecords, long fileLength)
+    {
+        DirectoryIndex index = new DirectoryIndex(numRecords, NAME_SIZE);
+        for (int i = 0; i < numRecords; ++i) {
+            int offset = i * RECORD_SIZE;
+            int lmpDataOffset = records.getLEInt(offset + NAME_SIZE);
+            int lmpDataLength = records.getLEInt(offset + NAME_SIZE + 4);
+            if (lmpDataOffset < 0 || lmpDataLength <= 0 || lmpDataLength > fileLength - lmpDataOffset) {
+                System.out.println("Skipping GOB entry " + DataUtil.collectString(records, offset, NAME_SIZE)
+                                   + " with offset " + lmpDataOffset + " and length " + lmpDataLength
+                                   + ", which is not within the file");
+                continue;
+            }
+            index.add(records, offset, lmpDataOffset, lmpDataLength);
+        }
+        index.sort();
+        return index;
+    }
 
-            offset += 0x28;
-            lmpName = DataUtil.collectString(data, offset);
+    private synchronized DirectoryIndex getDirectory()
+    {
+        if (directory == null) {
+            buildDirectory();
         }
+        return directory;
     }
 
-    private Map<String, ByteBuffer> directory;
-    private byte[] data;
+    private DirectoryIndex directory;
+    private ByteBuffer[] entryBuffers;
+    private ByteBuffer data;
 }
@@ -0,0 +1,36 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.Shader;
+import com.badlogic.gdx.graphics.g3d.utils.DefaultShaderProvider;
+
+/**
+ * Provides an IndexedTextureShader for materials with a palette, a TexCoordTransformShader for materials with a
+ * texture coordinate transform, and the default shader for everything else.
+ */
+public class IndexedShaderProvider extends DefaultShaderProvider
+{
+    public IndexedShaderProvider()
+    {
+    }
+
+    /**
+     * @param numBones the number of bones the shaders can skin with.
+     */
+    public IndexedShaderProvider(int numBones)
+    {
+        config.numBones = numBones;
+    }
+
+    @Override
+    protected Shader createShader(Renderable renderable)
+    {
+        if (IndexedTextureShader.isIndexed(renderable)) {
+            return new IndexedTextureShader(renderable, config);
+        }
+        if (TexCoordTransformShader.isTransformed(renderable)) {
+            return new TexCoordTransformShader(renderable, config);
+        }
+        return super.createShader(renderable);
+    }
+}
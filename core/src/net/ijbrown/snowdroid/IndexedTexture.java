@@ -0,0 +1,54 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Pixmap;
+
+import java.nio.ByteOrder;
+
+/**
+ * A decoded palletised texture: one index per pixel, rows top to bottom, and a palette of packed RGBA8888 ints.
+ * 4 bit textures still use a byte per index, as that is the smallest texture format GL ES has.
+ */
+public class IndexedTexture
+{
+    public IndexedTexture(int width, int height, byte[] indices, int[] palette)
+    {
+        this.width = width;
+        this.height = height;
+        this.indices = indices;
+        this.palette = palette;
+    }
+
+    /**
+     * Creates a single channel Pixmap holding the indices, for use with IndexedTextureShader.
+     */
+    public Pixmap toIndexPixmap()
+    {
+        Pixmap pixmap = new Pixmap(width, height, Pixmap.Format.Alpha);
+        java.nio.ByteBuffer pixmapData = pixmap.getPixels().duplicate();
+        pixmapData.clear();
+        pixmapData.put(indices, 0, width * height);
+        return pixmap;
+    }
+
+    /**
+     * Creates a palette.length x 1 RGBA8888 Pixmap holding the palette.
+     */
+    public Pixmap toPalettePixmap()
+    {
+        Pixmap pixmap = new Pixmap(palette.length, 1, Pixmap.Format.RGBA8888);
+        java.nio.ByteBuffer pixmapData = pixmap.getPixels().duplicate();
+        pixmapData.clear();
+        pixmapData.order(ByteOrder.BIG_ENDIAN).asIntBuffer().put(palette);
+        return pixmap;
+    }
+
+    public int getSizeInBytes()
+    {
+        return width * height + palette.length * 4;
+    }
+
+    public final int width;
+    public final int height;
+    public final byte[] indices;
+    public final int[] palette;
+}
@@ -0,0 +1,85 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.g3d.Attributes;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.shaders.BaseShader;
+import com.badlogic.gdx.graphics.g3d.attributes.TextureAttribute;
+
+/**
+ * The default shader, except that the diffuse texture holds palette indices which are looked up in the
+ * texture of the PaletteAttribute.
+ * Both textures must use nearest filtering, interpolating between indices makes no sense.
+ * Texture coordinates are transformed as they are by TexCoordTransformShader.
+ */
+public class IndexedTextureShader extends TexCoordTransformShader
+{
+    private static final String PALETTE_LOOKUP =
+            "uniform sampler2D u_diffuseTexture;\n" +
+            "uniform sampler2D u_paletteTexture;\n" +
+            "uniform float u_paletteSize;\n" +
+            "vec4 paletteLookup(vec2 texCoords) {\n" +
+            "    float index = floor(texture2D(u_diffuseTexture, texCoords).a * 255.0 + 0.5);\n" +
+            "    return texture2D(u_paletteTexture, vec2((index + 0.5) / u_paletteSize, 0.5));\n" +
+            "}\n";
+
+    public IndexedTextureShader(Renderable renderable, Config config)
+    {
+        super(renderable, createConfig(config));
+        register(new Uniform("u_paletteTexture", PaletteAttribute.Palette), new Setter()
+        {
+            @Override
+            public boolean isGlobal(BaseShader shader, int inputID)
+            {
+                return false;
+            }
+
+            @Override
+            public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes)
+            {
+                TextureAttribute palette = (TextureAttribute) combinedAttributes.get(PaletteAttribute.Palette);
+                shader.set(inputID, palette.textureDescription);
+            }
+        });
+        register(new Uniform("u_paletteSize", PaletteAttribute.Palette), new Setter()
+        {
+            @Override
+            public boolean isGlobal(BaseShader shader, int inputID)
+            {
+                return false;
+            }
+
+            @Override
+            public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes)
+            {
+                TextureAttribute palette = (TextureAttribute) combinedAttributes.get(PaletteAttribute.Palette);
+                shader.set(inputID, (float) palette.textureDescription.texture.getWidth());
+            }
+        });
+    }
+
+    /**
+     * Returns true if the renderable needs this shader.
+     */
+    public static boolean isIndexed(Renderable renderable)
+    {
+        return renderable.material.has(PaletteAttribute.Palette) && renderable.material.has(TextureAttribute.Diffuse);
+    }
+
+    private static Config createConfig(Config config)
+    {
+        Config indexedConfig = copyConfig(config);
+        indexedConfig.fragmentShader = getFragmentShader(config.fragmentShader);
+        return indexedConfig;
+    }
+
+    // Replaces the diffuse texture reads of the fragment shader with palette lookups.
+    private static String getFragmentShader(String fragmentShader)
+    {
+        if (fragmentShader == null) {
+            fragmentShader = getDefaultFragmentShader();
+        }
+        return fragmentShader
+                .replace("texture2D(u_diffuseTexture, v_texCoords0)", "paletteLookup(v_texCoords0)")
+                .replace("uniform sampler2D u_diffuseTexture;\n", PALETTE_LOOKUP);
+    }
+}
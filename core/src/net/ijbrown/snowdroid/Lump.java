@@ -1,8 +1,5 @@
 package net.ijbrown.snowdroid;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Encapsulates a lump file.
  */
@@ -10,40 +7,83 @@ public class Lump
 {
     public Lump(byte[] data, int startOffset)
     {
-        this.data = data;
-        this.startOffset = startOffset;
-        buildDirectory();
+        this(new ByteBuffer(data, startOffset, data.length - startOffset));
     }
 
     public Lump(ByteBuffer buffer)
     {
-        this.data = buffer.data;
-        this.startOffset = buffer.startOffset;
+        this.data = buffer;
         buildDirectory();
     }
 
+    /**
+     * Finds a sub file by name. The lookup itself does not allocate.
+     */
     public ByteBuffer findEntry(String name)
     {
-        return directory.get(name);
+        int entry = directory.find(name);
+        return entry < 0 ? null : getEntry(entry);
+    }
+
+    public int getNumEntries()
+    {
+        return directory.size();
+    }
+
+    public String getEntryName(int entry)
+    {
+        return directory.getName(entry);
+    }
+
+    /**
+     * Gets the name of an entry via a name table, so that no String is created if the name has been seen before.
+     */
+    public String getEntryName(int entry, NameTable nameTable)
+    {
+        return directory.getName(entry, nameTable);
+    }
+
+    public synchronized ByteBuffer getEntry(int entry)
+    {
+        if (entryBuffers[entry] == null) {
+            entryBuffers[entry] = data.slice(directory.getOffset(entry), directory.getLength(entry));
+        }
+        return entryBuffers[entry];
+    }
+
+    /**
+     * Gets the offset of an entry relative to the start of the lump.
+     */
+    public int getEntryOffset(int entry)
+    {
+        return directory.getOffset(entry);
+    }
+
+    public int getEntryLength(int entry)
+    {
+        return directory.getLength(entry);
     }
 
     public void buildDirectory()
     {
-        directory = new HashMap<String, ByteBuffer>();
-        int numFiles = DataUtil.getLEInt(data, startOffset);
+        // Each header is 0x40 bytes: a 0x38 byte name followed by the offset and length of the sub file.
+        int numFiles = data.getLEInt(0);
+        DirectoryIndex index = new DirectoryIndex(numFiles, 0x38);
 
         for (int fileNo=0; fileNo < numFiles; ++fileNo){
-            int headerOffset = startOffset + 4 + fileNo * 0x40;
-            String subfileName = DataUtil.collectString(data, headerOffset);
+            int headerOffset = 4 + fileNo * 0x40;
 
-            int subOffset = DataUtil.getLEInt(data, headerOffset + 0x38);
-            int subLen = DataUtil.getLEInt(data, headerOffset + 0x3C);
+            int subOffset = data.getLEInt(headerOffset + 0x38);
+            int subLen = data.getLEInt(headerOffset + 0x3C);
 
-            directory.put(subfileName, new ByteBuffer(data, startOffset + subOffset, subLen));
+            index.add(data, headerOffset, subOffset, subLen);
         }
+        index.sort();
+        directory = index;
+        entryBuffers = new ByteBuffer[numFiles];
     }
 
-    private Map<String, ByteBuffer> directory;
-    private int startOffset;
-    private byte[] data;
+    private DirectoryIndex directory;
+    private ByteBuffer[] entryBuffers;
+    private ByteBuffer data;
 }
@@ -1,5 +1,6 @@
 package net.ijbrown.snowdroid;
 
+import com.badlogic.gdx.Application;
 import com.badlogic.gdx.ApplicationAdapter;
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.*;
@@ -8,20 +9,53 @@ import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.g3d.attributes.IntAttribute;
 import com.badlogic.gdx.graphics.g3d.attributes.TextureAttribute;
 import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
+import com.badlogic.gdx.graphics.g3d.utils.AnimationController;
 import com.badlogic.gdx.graphics.g3d.utils.CameraInputController;
 import com.badlogic.gdx.math.collision.BoundingBox;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Main extends ApplicationAdapter
 {
     public Map<String, ModelDef> modelDefs = new HashMap<String, ModelDef>();
     String rootPath;
+    // If set, palletised textures are uploaded as indices plus a palette and expanded by the shader.
+    boolean indexedTextures = true;
+    // If set, every texture in the lump is packed into a TexAtlas. This takes precedence over indexedTextures.
+    boolean atlasTextures = false;
+    // If set, every texture is cooked on start up, so that later starts can upload them without decoding.
+    // Cooked textures are only used for textures loaded through the TextureCache, so palletised textures are
+    // not cooked while indexedTextures is set, as those are uploaded straight from their indices.
+    boolean cookTextures = false;
+    // If set, models keep the triangle strips from the vif data where their winding can be worked out.
+    boolean triangleStrips = true;
+    // If set, model triangles are reordered for the GPU's vertex cache.
+    boolean optimizeVertexCache = true;
+    // If set, models keep the vif data's shorts and bytes in their vertex buffers rather than floats.
+    boolean quantizedVertices = true;
+    // If set, models are cooked when they are first read, so that later starts can upload them without reading
+    // the vif data.
+    boolean cookModels = true;
+    // If set, the model's lump is read on its own with a StreamingGob, rather than from a mapping of its whole GOB.
+    boolean streamLumps = true;
+    AssetCatalog catalog;
+    BufferPool bufferPool = new BufferPool(4 * 1024 * 1024);
+    StreamingGob streamingGob;
+    ByteBuffer streamedLump;
+    CookedModels cookedModels;
+    Texture[] atlasPages;
+    TextureCache textureCache;
+    Texture texture;
+    Texture indexTexture;
+    Texture paletteTexture;
     Model model;
     ModelInstance modelInstance;
+    AnimationController animationController;
     ModelBatch modelBatch;
     Camera camera;
     CameraInputController camController;
@@ -47,42 +81,60 @@ public class Main extends ApplicationAdapter
     public void create()
     {
 
+        String animationName = null;
+        int numBones = 0;
         try {
             String dataDir = rootPath + "/BG/DATA/";
 
-            File file = new File(dataDir, "CELLAR1.GOB");
-            byte[] gobData = FileUtil.read(file);
-            Gob gob = new Gob(gobData);
+            File cacheDir = getCacheDir();
+            catalog = AssetCatalog.build(new File(dataDir), new File(cacheDir, "snowdroid.idx"));
+            textureCache = new TextureCache(catalog, 64 * 1024 * 1024, 128 * 1024 * 1024);
+            CookedTextures cookedTextures = new CookedTextures(new File(cacheDir, "cooked"));
+            if (cookTextures) {
+                cookedTextures.cookAll(catalog, Gdx.graphics.supportsExtension("OES_compressed_ETC1_RGB8_texture"),
+                                       indexedTextures);
+            }
+            textureCache.setCookedTextures(cookedTextures);
+            if (cookModels) {
+                cookedModels = new CookedModels(new File(cacheDir, "cooked"));
+            }
 
             ModelDef modelDef = modelDefs.get("kobold");
 
-            ByteBuffer mainLumpData = gob.findEntry(modelDef.lmpName);
+            AssetLocation lumpLocation = catalog.find(modelDef.lmpName);
+            if (lumpLocation == null) {
+                throw new IOException("Failed to find " + modelDef.lmpName);
+            }
+            ByteBuffer mainLumpData = openLump(lumpLocation);
             Lump mainLump = new Lump(mainLumpData);
 
-            ByteBuffer texData = mainLump.findEntry(modelDef.texName);
-            Pixmap pixmap = new TexReader().read(texData);
-            Texture texture = new Texture(pixmap);
-            Material material = new Material(TextureAttribute.createDiffuse(texture));
-
-            material.set(new IntAttribute(IntAttribute.CullFace, GL20.GL_NONE));
-
-            float uscale = 1.0f / pixmap.getWidth();
-            float vscale = 1.0f / pixmap.getHeight();
-
-            ByteBuffer vifData = mainLump.findEntry(modelDef.vifName);
-            model = new VifReader().readVif(vifData, material, uscale, vscale);
+            if (atlasTextures) {
+                model = readAtlasModel(mainLump, lumpLocation.gobName, modelDef);
+            } else {
+                model = readModel(mainLump, lumpLocation.gobName, modelDef);
+            }
 
             if (modelDef.animations.size() > 0){
                 String anmName = modelDef.animations.get(0);
                 AnimData animData = AnmReader.Decode(mainLump.findEntry(anmName));
+                SkeletonBuilder.addSkeleton(model, animData);
+                SkeletonBuilder.addAnimation(model, anmName, animData);
+                animationName = anmName;
+                numBones = animData.numBones;
             }
 
         } catch (IOException e) {
             e.printStackTrace();
             model = new Model();
+        } finally {
+            closeLump();
         }
 
         modelInstance = new ModelInstance(model);
+        if (animationName != null) {
+            animationController = new AnimationController(modelInstance);
+            animationController.setAnimation(animationName, -1);
+        }
         BoundingBox bb = new BoundingBox();
         modelInstance.calculateBoundingBox(bb);
 
@@ -97,7 +149,7 @@ public class Main extends ApplicationAdapter
         camController = new CameraInputController(camera);
         Gdx.input.setInputProcessor(camController);
 
-        modelBatch = new ModelBatch();
+        modelBatch = new ModelBatch(new IndexedShaderProvider(numBones));
 
         environment = new Environment();
         environment.set(new ColorAttribute(ColorAttribute.AmbientLight, 0.8f, 0.8f, 0.8f, 1f));
@@ -105,10 +157,149 @@ public class Main extends ApplicationAdapter
         environment.add(new DirectionalLight().set(0.8f, 0.8f, 0.8f, 1f, -0.8f, -0.2f));
     }
 
+    private ByteBuffer openLump(AssetLocation location) throws IOException
+    {
+        if (!streamLumps) {
+            return catalog.open(location);
+        }
+        streamingGob = new StreamingGob(catalog.getGobFile(location.gobName), bufferPool);
+        streamedLump = streamingGob.readLump(location.lumpName);
+        if (streamedLump == null) {
+            throw new IOException("Failed to read " + location.lumpName);
+        }
+        return streamedLump;
+    }
+
+    // The model and its textures and animations are copied out of the lump as they are read, so the streamed lump
+    // can go back to the pool once create is done with it.
+    private void closeLump()
+    {
+        if (streamingGob == null) {
+            return;
+        }
+        if (streamedLump != null) {
+            streamingGob.release(streamedLump);
+            streamedLump = null;
+        }
+        try {
+            streamingGob.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        streamingGob = null;
+    }
+
+    // The catalog index and cooked assets are kept out of the game data: in the app's own storage on Android,
+    // and in .snowdroid in the user's home directory elsewhere.
+    private static File getCacheDir()
+    {
+        if (Gdx.app.getType() == Application.ApplicationType.Android) {
+            return Gdx.files.local("cache").file();
+        }
+        return Gdx.files.external(".snowdroid/cache").file();
+    }
+
+    private Model readModel(Lump mainLump, String gobName, ModelDef modelDef) throws IOException
+    {
+        IndexedTexture indexed = null;
+        if (indexedTextures) {
+            indexed = new TexReader().decodeIndexed(mainLump.findEntry(modelDef.texName));
+        }
+        Material material;
+        int texWidth;
+        int texHeight;
+        if (indexed != null) {
+            indexTexture = createNearestTexture(indexed.toIndexPixmap());
+            paletteTexture = createNearestTexture(indexed.toPalettePixmap());
+            material = new Material(TextureAttribute.createDiffuse(indexTexture),
+                                    PaletteAttribute.createPalette(paletteTexture));
+            texWidth = indexed.width;
+            texHeight = indexed.height;
+        } else {
+            texture = textureCache.acquire(gobName, modelDef.lmpName, modelDef.texName);
+            if (texture == null) {
+                throw new IOException("Failed to decode " + modelDef.texName);
+            }
+            material = new Material(TextureAttribute.createDiffuse(texture));
+            texWidth = texture.getWidth();
+            texHeight = texture.getHeight();
+        }
+
+        material.set(new IntAttribute(IntAttribute.CullFace, GL20.GL_NONE));
+
+        float uscale = 1.0f / texWidth;
+        float vscale = 1.0f / texHeight;
+
+        ByteBuffer vifData = mainLump.findEntry(modelDef.vifName);
+        AssetLocation vifLocation = catalog.find(gobName, modelDef.lmpName, modelDef.vifName);
+        return createVifReader().readVif(vifData, vifLocation, material, uscale, vscale, 0.0f, 0.0f);
+    }
+
+    // Packs every texture in the lump into atlas pages, and maps the model's UVs into its page.
+    private Model readAtlasModel(Lump mainLump, String gobName, ModelDef modelDef) throws IOException
+    {
+        List<String> texNames = new ArrayList<String>();
+        List<ByteBuffer> texData = new ArrayList<ByteBuffer>();
+        for (int entry = 0; entry < mainLump.getNumEntries(); ++entry) {
+            String name = mainLump.getEntryName(entry);
+            if (name.endsWith(".tex")) {
+                texNames.add(name);
+                texData.add(mainLump.getEntry(entry));
+            }
+        }
+        List<DecodedTexture> decoded = TexReader.decodeAll(texData);
+        Map<String, DecodedTexture> textures = new HashMap<String, DecodedTexture>();
+        for (int i = 0; i < texNames.size(); ++i) {
+            if (decoded.get(i) != null) {
+                textures.put(texNames.get(i), decoded.get(i));
+            }
+        }
+        TexAtlas atlas = TexAtlas.build(textures, 1024);
+        TexAtlas.Region region = atlas.findRegion(modelDef.texName);
+        if (region == null) {
+            throw new IOException("Failed to decode " + modelDef.texName);
+        }
+
+        atlasPages = new Texture[atlas.getNumPages()];
+        for (int page = 0; page < atlasPages.length; ++page) {
+            Pixmap pixmap = atlas.getPage(page).toPixmap();
+            atlasPages[page] = new Texture(pixmap);
+            pixmap.dispose();
+        }
+        Material material = new Material(TextureAttribute.createDiffuse(atlasPages[region.page]));
+        material.set(new IntAttribute(IntAttribute.CullFace, GL20.GL_NONE));
+
+        ByteBuffer vifData = mainLump.findEntry(modelDef.vifName);
+        AssetLocation vifLocation = catalog.find(gobName, modelDef.lmpName, modelDef.vifName);
+        return createVifReader().readVif(vifData, vifLocation, material, region.getUScale(), region.getVScale(),
+                                         region.getUOffset(), region.getVOffset());
+    }
+
+    private VifReader createVifReader()
+    {
+        VifReader vifReader = new VifReader();
+        vifReader.setTriangleStrips(triangleStrips);
+        vifReader.setOptimizeVertexCache(optimizeVertexCache);
+        vifReader.setQuantizedVertices(quantizedVertices);
+        vifReader.setCookedModels(cookedModels);
+        return vifReader;
+    }
+
+    private static Texture createNearestTexture(Pixmap pixmap)
+    {
+        Texture texture = new Texture(pixmap);
+        texture.setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
+        pixmap.dispose();
+        return texture;
+    }
+
     @Override
     public void render()
     {
         camController.update();
+        if (animationController != null) {
+            animationController.update(Gdx.graphics.getDeltaTime());
+        }
         Gdx.gl.glViewport(0, 0, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
         Gdx.gl.glClearColor(0.6f, 0.6f, 0.6f, 1);
         Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
@@ -122,5 +313,20 @@ public class Main extends ApplicationAdapter
     {
         modelBatch.dispose();
         model.dispose();
+        if (texture != null) {
+            textureCache.release(texture);
+        }
+        if (indexTexture != null) {
+            indexTexture.dispose();
+            paletteTexture.dispose();
+        }
+        if (atlasPages != null) {
+            for (Texture page : atlasPages) {
+                page.dispose();
+            }
+        }
+        if (textureCache != null) {
+            textureCache.dispose();
+        }
     }
 }
@@ -0,0 +1,415 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.utils.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Assembles an indexed mesh straight into a float[] of interleaved vertices and index arrays, so that the mesh
+ * can be created and uploaded in one go.
+ * The mesh holds a single triangle strip, made by stitching together the strips added with degenerate triangles,
+ * followed by a list of triangles. The strip comes first in the index buffer.
+ * Each vertex is a position, a normal and a texture coordinate, followed by bone weights if the mesh is skinned.
+ * Every vertex also carries a weight id, which identifies its bone weights; vertices are only welded together
+ * if their weight ids match.
+ * If the mesh is quantized, the vertices are in VIF units and toMesh creates a QuantizedMesh.
+ */
+public class MeshAssembler
+{
+    public static final int NO_WEIGHT = -1;
+
+    private static final int MAX_VERTICES = 0x10000;
+
+    // The floats of each vertex while it is being assembled: position, normal and texture coordinate.
+    private static final int VERTEX_SIZE = 8;
+
+    public MeshAssembler(int expectedVertices, int expectedIndices)
+    {
+        vertices = new float[Math.max(1, expectedVertices) * VERTEX_SIZE];
+        weightIds = new int[Math.max(1, expectedVertices)];
+        indices = new int[Math.max(3, expectedIndices)];
+    }
+
+    /**
+     * Sets the bone weights that the weight ids refer to, making the mesh skinned. For each weight id there are
+     * numBoneWeights pairs of a bone index and a weight, as in a BoneWeight attribute. Vertices with NO_WEIGHT
+     * follow bone 0. This can be set at any time before toMesh.
+     */
+    public void setBoneWeights(int numBoneWeights, float[] boneWeights)
+    {
+        this.numBoneWeights = numBoneWeights;
+        this.boneWeights = boneWeights;
+    }
+
+    /**
+     * Sets whether toMesh creates a QuantizedMesh. The vertices must then be added in VIF units: positions and
+     * texture coordinates that fit in a short, and normals that fit in a signed byte.
+     */
+    public void setQuantized(boolean quantized)
+    {
+        this.quantized = quantized;
+    }
+
+    /**
+     * Adds a vertex. Identical vertices may be added freely, weld merges them.
+     *
+     * @param weightId identifies the bone weights of the vertex, or NO_WEIGHT.
+     * @return the index of the vertex.
+     */
+    public int addVertex(float x, float y, float z, float nx, float ny, float nz, float u, float v, int weightId)
+    {
+        if (numVertices == weightIds.length) {
+            vertices = Arrays.copyOf(vertices, vertices.length * 2);
+            weightIds = Arrays.copyOf(weightIds, weightIds.length * 2);
+        }
+        int offset = numVertices * VERTEX_SIZE;
+        vertices[offset] = x;
+        vertices[offset + 1] = y;
+        vertices[offset + 2] = z;
+        vertices[offset + 3] = nx;
+        vertices[offset + 4] = ny;
+        vertices[offset + 5] = nz;
+        vertices[offset + 6] = u;
+        vertices[offset + 7] = v;
+        weightIds[numVertices] = weightId;
+        return numVertices++;
+    }
+
+    public void triangle(int index1, int index2, int index3)
+    {
+        if (numIndices + 3 > indices.length) {
+            indices = Arrays.copyOf(indices, indices.length * 2);
+        }
+        indices[numIndices++] = index1;
+        indices[numIndices++] = index2;
+        indices[numIndices++] = index3;
+    }
+
+    /**
+     * Adds a triangle strip, stitching it on to the end of the strips already added.
+     *
+     * @param reversed if set, the winding of every triangle in the strip is flipped.
+     */
+    public void strip(int[] strip, int offset, int count, boolean reversed)
+    {
+        int required = numStripIndices + count + 3;
+        if (required > stripIndices.length) {
+            stripIndices = Arrays.copyOf(stripIndices, Math.max(stripIndices.length * 2, required));
+        }
+        if (numStripIndices > 0) {
+            stripIndices[numStripIndices] = stripIndices[numStripIndices - 1];
+            ++numStripIndices;
+            stripIndices[numStripIndices++] = strip[offset];
+        }
+        // A strip's first triangle keeps its winding if it starts at an even index. Repeating the first vertex
+        // moves it on by one, which flips the winding of the whole strip.
+        if (((numStripIndices & 1) == 1) != reversed) {
+            stripIndices[numStripIndices++] = strip[offset];
+        }
+        System.arraycopy(strip, offset, stripIndices, numStripIndices, count);
+        numStripIndices += count;
+    }
+
+    /**
+     * Merges vertices with identical attributes and weight ids, and drops vertices that no triangle uses.
+     * Vertices are found in a hash table, so this is linear in the number of indices.
+     * The surviving vertices are numbered in the order the strip, then the triangles, first use them.
+     */
+    public void weld()
+    {
+        int tableSize = 1;
+        while (tableSize < numVertices * 2) {
+            tableSize <<= 1;
+        }
+        final int mask = tableSize - 1;
+        int[] table = new int[tableSize];
+        Arrays.fill(table, -1);
+        int[] remap = new int[numVertices];
+        Arrays.fill(remap, -1);
+
+        float[] welded = new float[numVertices * VERTEX_SIZE];
+        int[] weldedWeightIds = new int[numVertices];
+        int numWelded = 0;
+        int[][] indexLists = {stripIndices, indices};
+        int[] indexCounts = {numStripIndices, numIndices};
+        for (int list = 0; list < indexLists.length; ++list) {
+            int[] listIndices = indexLists[list];
+            for (int i = 0; i < indexCounts[list]; ++i) {
+                int index = listIndices[i];
+                if (remap[index] < 0) {
+                    int slot = hash(index) & mask;
+                    while (table[slot] >= 0 && !sameVertex(welded, weldedWeightIds, table[slot], index)) {
+                        slot = (slot + 1) & mask;
+                    }
+                    if (table[slot] < 0) {
+                        System.arraycopy(vertices, index * VERTEX_SIZE, welded, numWelded * VERTEX_SIZE,
+                                         VERTEX_SIZE);
+                        weldedWeightIds[numWelded] = weightIds[index];
+                        table[slot] = numWelded++;
+                    }
+                    remap[index] = table[slot];
+                }
+                listIndices[i] = remap[index];
+            }
+        }
+        vertices = welded;
+        weightIds = weldedWeightIds;
+        numVertices = numWelded;
+    }
+
+    /**
+     * Reorders the triangles for the GPU's post-transform vertex cache, see MeshOptimizer, then renumbers the
+     * vertices in the order they are first used so that they are fetched in order. The order of the strip is
+     * fixed by the triangles it makes, so only the triangle list is reordered. Call this after weld.
+     */
+    public void optimizeVertexCache()
+    {
+        MeshOptimizer.optimizeTriangles(indices, numIndices, numVertices);
+
+        int[] remap = new int[numVertices];
+        Arrays.fill(remap, -1);
+        float[] reordered = new float[numVertices * VERTEX_SIZE];
+        int[] reorderedWeightIds = new int[numVertices];
+        int numReordered = 0;
+        int[][] indexLists = {stripIndices, indices};
+        int[] indexCounts = {numStripIndices, numIndices};
+        for (int list = 0; list < indexLists.length; ++list) {
+            int[] listIndices = indexLists[list];
+            for (int i = 0; i < indexCounts[list]; ++i) {
+                int index = listIndices[i];
+                if (remap[index] < 0) {
+                    System.arraycopy(vertices, index * VERTEX_SIZE, reordered, numReordered * VERTEX_SIZE,
+                                     VERTEX_SIZE);
+                    reorderedWeightIds[numReordered] = weightIds[index];
+                    remap[index] = numReordered++;
+                }
+                listIndices[i] = remap[index];
+            }
+        }
+        vertices = reordered;
+        weightIds = reorderedWeightIds;
+        numVertices = numReordered;
+    }
+
+    /**
+     * Counts the vertex cache misses when drawing the mesh, see MeshOptimizer.countCacheMisses.
+     */
+    public int getCacheMisses()
+    {
+        int[] allIndices = Arrays.copyOf(stripIndices, numStripIndices + numIndices);
+        System.arraycopy(indices, 0, allIndices, numStripIndices, numIndices);
+        return MeshOptimizer.countCacheMisses(allIndices, allIndices.length, numVertices);
+    }
+
+    /**
+     * The number of triangles drawn, not counting the degenerate triangles in the strip.
+     */
+    public int getNumTriangles()
+    {
+        int numTriangles = numIndices / 3;
+        for (int i = 2; i < numStripIndices; ++i) {
+            int v1 = stripIndices[i - 2];
+            int v2 = stripIndices[i - 1];
+            int v3 = stripIndices[i];
+            if (v1 != v2 && v2 != v3 && v1 != v3) {
+                ++numTriangles;
+            }
+        }
+        return numTriangles;
+    }
+
+    public int getNumVertices()
+    {
+        return numVertices;
+    }
+
+    public int getNumStripIndices()
+    {
+        return numStripIndices;
+    }
+
+    public int getNumTriangleIndices()
+    {
+        return numIndices;
+    }
+
+    public int getWeightId(int index)
+    {
+        return weightIds[index];
+    }
+
+    public int getNumBoneWeights()
+    {
+        return numBoneWeights;
+    }
+
+    public boolean isQuantized()
+    {
+        return quantized;
+    }
+
+    public VertexAttributes getVertexAttributes()
+    {
+        return getVertexAttributes(quantized, numBoneWeights);
+    }
+
+    public static VertexAttributes getVertexAttributes(boolean quantized, int numBoneWeights)
+    {
+        if (quantized) {
+            return QuantizedMesh.getVertexAttributes(numBoneWeights);
+        }
+        VertexAttribute[] attributes = new VertexAttribute[3 + numBoneWeights];
+        attributes[0] = VertexAttribute.Position();
+        attributes[1] = VertexAttribute.Normal();
+        attributes[2] = VertexAttribute.TexCoords(0);
+        for (int i = 0; i < numBoneWeights; ++i) {
+            attributes[3 + i] = VertexAttribute.BoneWeight(i);
+        }
+        return new VertexAttributes(attributes);
+    }
+
+    /**
+     * Creates an empty static mesh for vertices laid out as an assembler with these settings lays them out.
+     * This must be called on the GL thread.
+     */
+    public static Mesh createMesh(boolean quantized, int numBoneWeights, int maxVertices, int maxIndices)
+    {
+        if (quantized) {
+            return new QuantizedMesh(maxVertices, maxIndices, numBoneWeights);
+        }
+        return new Mesh(true, maxVertices, maxIndices, getVertexAttributes(false, numBoneWeights));
+    }
+
+    /**
+     * Creates a static mesh holding the assembled vertices. The strip indices come first in the index buffer,
+     * followed by the triangle indices. This must be called on the GL thread.
+     */
+    public Mesh toMesh()
+    {
+        java.nio.ByteBuffer meshVertices = getMeshVertices();
+        short[] meshIndices = getMeshIndices();
+        Mesh mesh = createMesh(quantized, numBoneWeights, numVertices, meshIndices.length);
+        setVertices(mesh, meshVertices);
+        mesh.setIndices(meshIndices);
+        return mesh;
+    }
+
+    /**
+     * Copies vertices, laid out as getMeshVertices lays them out, into a mesh from createMesh. The bytes are copied
+     * as they are, as the vertices of a QuantizedMesh are not floats.
+     *
+     * @param vertices a direct buffer holding the vertices from its position to its limit.
+     */
+    public static void setVertices(Mesh mesh, java.nio.ByteBuffer vertices)
+    {
+        // Getting the buffer marks it as changed, so it is uploaded when the mesh is next bound.
+        FloatBuffer buffer = mesh.getVerticesBuffer();
+        buffer.clear();
+        BufferUtils.copy(vertices, buffer, vertices.remaining());
+        if (mesh instanceof QuantizedMesh) {
+            ((QuantizedMesh) mesh).setPositions(vertices);
+        }
+    }
+
+    /**
+     * The vertices as toMesh gives them to the mesh, interleaved as getVertexAttributes describes, in a direct
+     * buffer in native byte order.
+     */
+    public java.nio.ByteBuffer getMeshVertices()
+    {
+        if (numVertices > MAX_VERTICES) {
+            throw new RuntimeException("Too many vertices for a mesh with short indices: " + numVertices);
+        }
+        int vertexSize = getVertexAttributes().vertexSize;
+        java.nio.ByteBuffer meshVertices = BufferUtils.newByteBuffer(numVertices * vertexSize);
+        for (int v = 0; v < numVertices; ++v) {
+            int offset = v * VERTEX_SIZE;
+            meshVertices.position(v * vertexSize);
+            if (quantized) {
+                QuantizedMesh.packVertex(meshVertices, (int) vertices[offset], (int) vertices[offset + 1],
+                                         (int) vertices[offset + 2], (int) vertices[offset + 3],
+                                         (int) vertices[offset + 4], (int) vertices[offset + 5],
+                                         (int) vertices[offset + 6], (int) vertices[offset + 7]);
+            } else {
+                for (int i = 0; i < VERTEX_SIZE; ++i) {
+                    meshVertices.putFloat(vertices[offset + i]);
+                }
+            }
+            if (numBoneWeights > 0) {
+                putBoneWeights(weightIds[v], meshVertices);
+            }
+        }
+        meshVertices.clear();
+        return meshVertices;
+    }
+
+    /**
+     * The indices as toMesh gives them to the mesh: the strip followed by the triangles.
+     */
+    public short[] getMeshIndices()
+    {
+        short[] meshIndices = new short[numStripIndices + numIndices];
+        for (int i = 0; i < numStripIndices; ++i) {
+            meshIndices[i] = (short) stripIndices[i];
+        }
+        for (int i = 0; i < numIndices; ++i) {
+            meshIndices[numStripIndices + i] = (short) indices[i];
+        }
+        return meshIndices;
+    }
+
+    // Puts the bone weights of a weight id at the buffer's position, which must be zeroed.
+    private void putBoneWeights(int weightId, java.nio.ByteBuffer dest)
+    {
+        if (weightId == NO_WEIGHT) {
+            // Bone 0 with a weight of 1.
+            dest.putFloat(0.0f).putFloat(1.0f);
+        } else {
+            int offset = weightId * numBoneWeights * 2;
+            for (int i = 0; i < numBoneWeights * 2; ++i) {
+                dest.putFloat(boneWeights[offset + i]);
+            }
+        }
+    }
+
+    private int hash(int index)
+    {
+        int hash = weightIds[index];
+        int offset = index * VERTEX_SIZE;
+        for (int i = 0; i < VERTEX_SIZE; ++i) {
+            hash = hash * 31 + Float.floatToRawIntBits(vertices[offset + i]);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean sameVertex(float[] welded, int[] weldedWeightIds, int weldedIndex, int index)
+    {
+        if (weldedWeightIds[weldedIndex] != weightIds[index]) {
+            return false;
+        }
+        int weldedOffset = weldedIndex * VERTEX_SIZE;
+        int offset = index * VERTEX_SIZE;
+        for (int i = 0; i < VERTEX_SIZE; ++i) {
+            if (Float.floatToRawIntBits(welded[weldedOffset + i]) != Float.floatToRawIntBits(vertices[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int numBoneWeights;
+    private float[] boneWeights;
+    private boolean quantized;
+
+    private float[] vertices;
+    private int[] weightIds;
+    private int numVertices;
+    private int[] indices;
+    private int numIndices;
+    private int[] stripIndices = new int[16];
+    private int numStripIndices;
+}
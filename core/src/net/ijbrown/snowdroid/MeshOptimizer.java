@@ -0,0 +1,216 @@
+package net.ijbrown.snowdroid;
+
+import java.util.Arrays;
+
+/**
+ * Reorders indexed triangles for the GPU's post-transform vertex cache, using Tom Forsyth's
+ * "Linear-Speed Vertex Cache Optimisation". Triangles are emitted greedily, always choosing the one whose vertices
+ * score best: vertices recently used score highly, as do vertices with few triangles left to draw, so that
+ * lone triangles are not left behind.
+ */
+public class MeshOptimizer
+{
+    // The size of the LRU cache that the scores model.
+    private static final int CACHE_SIZE = 32;
+
+    // The size of the FIFO cache used to count cache misses. This is a typical size for current GPUs.
+    public static final int MISS_CACHE_SIZE = 32;
+
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRI_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+    private static final int MAX_VALENCE_SCORE = 64;
+
+    private static final float[] cachePositionScores = new float[CACHE_SIZE];
+    private static final float[] valenceScores = new float[MAX_VALENCE_SCORE];
+
+    static {
+        for (int pos = 0; pos < CACHE_SIZE; ++pos) {
+            if (pos < 3) {
+                // The vertices of the last triangle are in the cache whatever order they are used in.
+                cachePositionScores[pos] = LAST_TRI_SCORE;
+            } else {
+                float scaled = 1.0f - (float) (pos - 3) / (CACHE_SIZE - 3);
+                cachePositionScores[pos] = (float) Math.pow(scaled, CACHE_DECAY_POWER);
+            }
+        }
+        for (int valence = 1; valence < MAX_VALENCE_SCORE; ++valence) {
+            valenceScores[valence] = VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+        }
+    }
+
+    /**
+     * Reorders a triangle list in place. The vertices of each triangle keep their order, so winding is preserved.
+     */
+    public static void optimizeTriangles(int[] indices, int numIndices, int numVertices)
+    {
+        final int numTriangles = numIndices / 3;
+        if (numTriangles < 2) {
+            return;
+        }
+
+        // The triangles using each vertex, packed into one array.
+        int[] remaining = new int[numVertices];
+        for (int i = 0; i < numTriangles * 3; ++i) {
+            ++remaining[indices[i]];
+        }
+        int[] vertexTriStart = new int[numVertices + 1];
+        for (int v = 0; v < numVertices; ++v) {
+            vertexTriStart[v + 1] = vertexTriStart[v] + remaining[v];
+        }
+        int[] vertexTris = new int[numTriangles * 3];
+        int[] fill = Arrays.copyOf(vertexTriStart, numVertices);
+        for (int i = 0; i < numTriangles * 3; ++i) {
+            vertexTris[fill[indices[i]]++] = i / 3;
+        }
+
+        int[] cachePosition = new int[numVertices];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScores = new float[numVertices];
+        for (int v = 0; v < numVertices; ++v) {
+            vertexScores[v] = getVertexScore(-1, remaining[v]);
+        }
+        float[] triScores = new float[numTriangles];
+        for (int tri = 0; tri < numTriangles; ++tri) {
+            triScores[tri] = vertexScores[indices[tri * 3]] + vertexScores[indices[tri * 3 + 1]]
+                    + vertexScores[indices[tri * 3 + 2]];
+        }
+
+        boolean[] emitted = new boolean[numTriangles];
+        int[] output = new int[numTriangles * 3];
+        // Three extra slots hold the vertices pushed out of the cache by the triangle just emitted.
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int scanStart = 0;
+
+        int bestTri = findBestTriangle(triScores, emitted, 0);
+        for (int outTri = 0; outTri < numTriangles; ++outTri) {
+            if (bestTri < 0) {
+                // Nothing in the cache has triangles left, continue with the best of the rest.
+                while (emitted[scanStart]) {
+                    ++scanStart;
+                }
+                bestTri = findBestTriangle(triScores, emitted, scanStart);
+            }
+            emitted[bestTri] = true;
+            System.arraycopy(indices, bestTri * 3, output, outTri * 3, 3);
+
+            // Move the triangle's vertices to the front of the cache, followed by the rest in their old order.
+            int newCount = 0;
+            for (int corner = 0; corner < 3; ++corner) {
+                int v = indices[bestTri * 3 + corner];
+                if ((newCount < 1 || newCache[0] != v) && (newCount < 2 || newCache[1] != v)) {
+                    newCache[newCount++] = v;
+                }
+                removeTriangle(vertexTris, vertexTriStart[v], remaining[v], bestTri);
+                --remaining[v];
+            }
+            for (int i = 0; i < cacheCount; ++i) {
+                int v = cache[i];
+                if (!isInTriangle(indices, bestTri, v)) {
+                    newCache[newCount++] = v;
+                }
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheCount = newCount;
+
+            // Rescore the vertices in the cache and the ones that just fell out of it, and their triangles.
+            for (int i = 0; i < cacheCount; ++i) {
+                int v = cache[i];
+                cachePosition[v] = i < CACHE_SIZE ? i : -1;
+                float delta = getVertexScore(cachePosition[v], remaining[v]) - vertexScores[v];
+                vertexScores[v] += delta;
+                for (int t = vertexTriStart[v]; t < vertexTriStart[v] + remaining[v]; ++t) {
+                    triScores[vertexTris[t]] += delta;
+                }
+            }
+            cacheCount = Math.min(cacheCount, CACHE_SIZE);
+
+            bestTri = -1;
+            float bestScore = -1.0f;
+            for (int i = 0; i < cacheCount; ++i) {
+                int v = cache[i];
+                for (int t = vertexTriStart[v]; t < vertexTriStart[v] + remaining[v]; ++t) {
+                    int tri = vertexTris[t];
+                    if (triScores[tri] > bestScore) {
+                        bestScore = triScores[tri];
+                        bestTri = tri;
+                    }
+                }
+            }
+        }
+        System.arraycopy(output, 0, indices, 0, numTriangles * 3);
+    }
+
+    /**
+     * Counts the vertex cache misses when drawing the indices, with a FIFO cache of MISS_CACHE_SIZE entries.
+     * The average cache miss ratio (ACMR) is this divided by the number of triangles.
+     */
+    public static int countCacheMisses(int[] indices, int numIndices, int numVertices)
+    {
+        int[] fifo = new int[MISS_CACHE_SIZE];
+        boolean[] cached = new boolean[numVertices];
+        int next = 0;
+        int count = 0;
+        int misses = 0;
+        for (int i = 0; i < numIndices; ++i) {
+            int v = indices[i];
+            if (!cached[v]) {
+                ++misses;
+                if (count == MISS_CACHE_SIZE) {
+                    cached[fifo[next]] = false;
+                } else {
+                    ++count;
+                }
+                fifo[next] = v;
+                cached[v] = true;
+                next = (next + 1) % MISS_CACHE_SIZE;
+            }
+        }
+        return misses;
+    }
+
+    private static float getVertexScore(int cachePosition, int remainingTris)
+    {
+        if (remainingTris == 0) {
+            // No triangles left, so it no longer matters.
+            return -1.0f;
+        }
+        float score = cachePosition < 0 ? 0.0f : cachePositionScores[cachePosition];
+        return score + valenceScores[Math.min(remainingTris, MAX_VALENCE_SCORE - 1)];
+    }
+
+    private static boolean isInTriangle(int[] indices, int tri, int v)
+    {
+        return indices[tri * 3] == v || indices[tri * 3 + 1] == v || indices[tri * 3 + 2] == v;
+    }
+
+    private static int findBestTriangle(float[] triScores, boolean[] emitted, int start)
+    {
+        int bestTri = -1;
+        float bestScore = -Float.MAX_VALUE;
+        for (int tri = start; tri < triScores.length; ++tri) {
+            if (!emitted[tri] && triScores[tri] > bestScore) {
+                bestScore = triScores[tri];
+                bestTri = tri;
+            }
+        }
+        return bestTri;
+    }
+
+    // Removes a triangle from the unordered list of a vertex's remaining triangles.
+    private static void removeTriangle(int[] vertexTris, int start, int count, int tri)
+    {
+        for (int t = start; t < start + count; ++t) {
+            if (vertexTris[t] == tri) {
+                vertexTris[t] = vertexTris[start + count - 1];
+                vertexTris[start + count - 1] = tri;
+                return;
+            }
+        }
+    }
+}
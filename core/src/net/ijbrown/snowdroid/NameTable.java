@@ -0,0 +1,94 @@
+package net.ijbrown.snowdroid;
+
+/**
+ * Interns file names read from archive directories.
+ * A name is hashed and compared as raw NUL terminated bytes in place, so looking up a name that has
+ * already been seen creates no objects. The same name appearing in many archives maps to one String.
+ * A table never forgets a name, so it should only be kept for as long as one job, such as reading the directories
+ * of every GOB file.
+ */
+public class NameTable
+{
+    public NameTable()
+    {
+        hashes = new int[INITIAL_CAPACITY];
+        strings = new String[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the canonical String for the NUL terminated name of at most maxLen bytes at offset.
+     */
+    public synchronized String intern(ByteBuffer buffer, int offset, int maxLen)
+    {
+        int hash = DataUtil.hashName(buffer, offset, maxLen);
+        int mask = strings.length - 1;
+        int slot = hash & mask;
+        while (strings[slot] != null) {
+            if (hashes[slot] == hash && DataUtil.compareName(buffer, offset, maxLen, strings[slot]) == 0) {
+                return strings[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        String name = DataUtil.collectString(buffer, offset, maxLen);
+        insert(slot, hash, name);
+        return name;
+    }
+
+    /**
+     * Returns the canonical String equal to name.
+     */
+    public synchronized String intern(String name)
+    {
+        int hash = DataUtil.hashName(name);
+        int mask = strings.length - 1;
+        int slot = hash & mask;
+        while (strings[slot] != null) {
+            if (hashes[slot] == hash && strings[slot].equals(name)) {
+                return strings[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        insert(slot, hash, name);
+        return name;
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    private void insert(int slot, int hash, String name)
+    {
+        hashes[slot] = hash;
+        strings[slot] = name;
+        ++size;
+        if (size * 4 > strings.length * 3) {
+            grow();
+        }
+    }
+
+    private void grow()
+    {
+        int[] oldHashes = hashes;
+        String[] oldStrings = strings;
+        hashes = new int[oldStrings.length * 2];
+        strings = new String[oldStrings.length * 2];
+        int mask = strings.length - 1;
+        for (int i = 0; i < oldStrings.length; ++i) {
+            if (oldStrings[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (strings[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                strings[slot] = oldStrings[i];
+            }
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int[] hashes;
+    private String[] strings;
+    private int size;
+}
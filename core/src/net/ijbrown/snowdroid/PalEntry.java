@@ -22,6 +22,14 @@ public class PalEntry
     }
 
     public int rgba()
+    {
+        return rgba(r, g, b, a);
+    }
+
+    /**
+     * Packs PS2 colour components into an RGBA8888 int.
+     */
+    public static int rgba(byte r, byte g, byte b, byte a)
     {
         // in ps2 0x80 is fully transparent and 0 is opaque.
         // in java 0 is transparent and 0xFF is opaque.
@@ -39,22 +47,37 @@ public class PalEntry
 
     public static PalEntry[] readPalette(ByteBuffer fileDataBuffer, int startOffset, int palw, int palh)
     {
-        byte[] fileData = fileDataBuffer.data;
-        startOffset += fileDataBuffer.startOffset;
         int numEntries = palw * palh;
+        byte[] src = new byte[numEntries * 4];
+        fileDataBuffer.getBytes(startOffset, src, 0, src.length);
         PalEntry[] palette = new PalEntry[numEntries];
         for (int i = 0; i < numEntries; ++i) {
             PalEntry pe = new PalEntry();
-            pe.r = fileData[startOffset + i * 4];
-            pe.g = fileData[startOffset + i * 4 + 1];
-            pe.b = fileData[startOffset + i * 4 + 2];
-            pe.a = fileData[startOffset + i * 4 + 3];
+            pe.r = src[i * 4];
+            pe.g = src[i * 4 + 1];
+            pe.b = src[i * 4 + 2];
+            pe.a = src[i * 4 + 3];
 
             palette[i] = pe;
         }
         return palette;
     }
 
+    /**
+     * Reads a palette as packed RGBA8888 ints, see rgba().
+     */
+    public static int[] readPaletteRGBA(ByteBuffer fileDataBuffer, int startOffset, int palw, int palh)
+    {
+        int numEntries = palw * palh;
+        byte[] src = new byte[numEntries * 4];
+        fileDataBuffer.getBytes(startOffset, src, 0, src.length);
+        int[] palette = new int[numEntries];
+        for (int i = 0; i < numEntries; ++i) {
+            palette[i] = rgba(src[i * 4], src[i * 4 + 1], src[i * 4 + 2], src[i * 4 + 3]);
+        }
+        return palette;
+    }
+
     public static PalEntry[] unswizzlePalette(PalEntry[] palette)
     {
         if (palette.length == 256) {
@@ -73,6 +96,24 @@ public class PalEntry
         }
     }
 
+    public static int[] unswizzlePalette(int[] palette)
+    {
+        if (palette.length == 256) {
+            int[] unswizzled = new int[palette.length];
+
+            int j = 0;
+            for (int i = 0; i < 256; i += 32, j += 32) {
+                System.arraycopy(palette, j, unswizzled, i, 8);
+                System.arraycopy(palette, j + 8, unswizzled, i + 16, 8);
+                System.arraycopy(palette, j + 16, unswizzled, i + 8, 8);
+                System.arraycopy(palette, j + 24, unswizzled, i + 24, 8);
+            }
+            return unswizzled;
+        } else {
+            return palette;
+        }
+    }
+
     private static void copy(PalEntry[] unswizzled, int i, PalEntry[] swizzled, int j, int num)
     {
         System.arraycopy(swizzled, j, unswizzled, i, num);
@@ -0,0 +1,40 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g3d.Attribute;
+import com.badlogic.gdx.graphics.g3d.attributes.TextureAttribute;
+
+/**
+ * The palette of an indexed texture. The diffuse texture holds the indices and this holds the colours,
+ * as a 16x1 or 256x1 texture.
+ */
+public class PaletteAttribute extends TextureAttribute
+{
+    public static final String PaletteAlias = "paletteTexture";
+    public static final long Palette = register(PaletteAlias);
+
+    static {
+        Mask |= Palette;
+    }
+
+    public static PaletteAttribute createPalette(Texture texture)
+    {
+        return new PaletteAttribute(texture);
+    }
+
+    public PaletteAttribute(Texture texture)
+    {
+        super(Palette, texture);
+    }
+
+    public PaletteAttribute(PaletteAttribute copyFrom)
+    {
+        super(copyFrom);
+    }
+
+    @Override
+    public Attribute copy()
+    {
+        return new PaletteAttribute(this);
+    }
+}
@@ -0,0 +1,90 @@
+package net.ijbrown.snowdroid;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The per-pixel inner loops of texture decoding.
+ * This class is the portable scalar implementation. On desktop JDKs with the jdk.incubator.vector module,
+ * the simd project provides a vectorised subclass, which get() picks up if it is on the class path.
+ * Both give exactly the same pixels.
+ */
+public class PixelKernels
+{
+    private static final String VECTOR_KERNELS = "net.ijbrown.snowdroid.simd.VectorPixelKernels";
+
+    private static PixelKernels instance;
+
+    /**
+     * Gets the fastest available implementation. Setting the system property snowdroid.nosimd forces
+     * the scalar one.
+     */
+    public static synchronized PixelKernels get()
+    {
+        if (instance == null) {
+            instance = create();
+        }
+        return instance;
+    }
+
+    private static PixelKernels create()
+    {
+        if (!Boolean.getBoolean("snowdroid.nosimd")) {
+            try {
+                return (PixelKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException e) {
+                // Not on the class path, as on Android.
+            } catch (InvocationTargetException e) {
+                // The vectors are too narrow to be worth using.
+                System.out.println("Vector pixel kernels not used: " + e.getCause());
+            } catch (Exception e) {
+                System.out.println("Vector pixel kernels not used: " + e);
+            } catch (ExceptionInInitializerError e) {
+                // A bug in the vector kernels rather than something missing, so say so.
+                System.out.println("Vector pixel kernels failed to initialise: " + e.getCause());
+            } catch (LinkageError e) {
+                // The JDK does not have the vector module, or it was not added with --add-modules.
+            }
+        }
+        return new PixelKernels();
+    }
+
+    /**
+     * Unswizzles 8 bit indices and looks them up in the palette, writing dest[start, end).
+     * See SwizzleTable for the table.
+     */
+    public void gather8(byte[] uploaded, int[] palette, int[] table, int[] dest, int start, int end)
+    {
+        for (int i = start; i < end; ++i) {
+            dest[i] = palette[uploaded[table[i]] & 0xFF];
+        }
+    }
+
+    /**
+     * Unswizzles 4 bit indices and looks them up in the palette, writing dest[start, end).
+     * The table gives nibble offsets, the low nibble of a byte comes first.
+     */
+    public void gather4(byte[] uploaded, int[] palette, int[] table, int[] dest, int start, int end)
+    {
+        for (int i = start; i < end; ++i) {
+            int nibble = table[i];
+            dest[i] = palette[(uploaded[nibble >> 1] >> ((nibble & 1) << 2)) & 0x0F];
+        }
+    }
+
+    /**
+     * Converts 32 bit PS2 pixels, 4 bytes each starting at src[start * 4], to RGBA8888 in dest[start, end).
+     * See PalEntry.rgba.
+     */
+    public void rgba32(byte[] src, int[] dest, int start, int end)
+    {
+        for (int i = start, idx = start * 4; i < end; ++i, idx += 4) {
+            dest[i] = PalEntry.rgba(src[idx], src[idx + 1], src[idx + 2], src[idx + 3]);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "scalar";
+    }
+}
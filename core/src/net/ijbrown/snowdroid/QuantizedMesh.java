@@ -0,0 +1,134 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.VertexAttributes.Usage;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+
+import java.nio.ShortBuffer;
+
+/**
+ * A static mesh that keeps the precision of the VIF data, rather than widening it to floats. Positions and
+ * texture coordinates are shorts and normals are normalized signed bytes, so a vertex is 16 bytes instead of 32.
+ * Bone weights, if there are any, follow as floats.
+ * The positions are in VIF units, so the node drawing the mesh must scale them by POSITION_SCALE, and the
+ * texture coordinates are in texels, so the material needs a TexCoordTransformAttribute.
+ * <p>
+ * libgdx only binds float attributes, so the attributes are declared as the floats that take up the same space,
+ * which gives the shaders the right defines, and bind points them at the real types after the mesh binds them.
+ * The packed vertices are never handled as floats, as many of them would be NaNs: they are packed into a byte
+ * buffer with packVertex and copied into the mesh as bytes by MeshAssembler.setVertices.
+ */
+public class QuantizedMesh extends Mesh
+{
+    public static final float POSITION_SCALE = 1.0f / 16.0f;
+
+    // The number of leading attributes that are not really floats, with their real layout.
+    private static final int NUM_QUANTIZED_ATTRIBUTES = 3;
+    private static final int[] COMPONENTS = {3, 3, 2};
+    private static final int[] TYPES = {GL20.GL_SHORT, GL20.GL_BYTE, GL20.GL_SHORT};
+    private static final boolean[] NORMALIZED = {false, true, false};
+
+    public QuantizedMesh(int maxVertices, int maxIndices, int numBoneWeights)
+    {
+        super(true, maxVertices, maxIndices, getVertexAttributes(numBoneWeights));
+    }
+
+    /**
+     * The attributes as libgdx sees them. A position is three shorts and a pad, a normal three bytes and a pad,
+     * and a texture coordinate two shorts. They are followed by numBoneWeights bone weights.
+     */
+    public static VertexAttributes getVertexAttributes(int numBoneWeights)
+    {
+        VertexAttribute[] attributes = new VertexAttribute[NUM_QUANTIZED_ATTRIBUTES + numBoneWeights];
+        attributes[0] = new VertexAttribute(Usage.Position, 2, ShaderProgram.POSITION_ATTRIBUTE);
+        attributes[1] = new VertexAttribute(Usage.Normal, 1, ShaderProgram.NORMAL_ATTRIBUTE);
+        attributes[2] = new VertexAttribute(Usage.TextureCoordinates, 1, ShaderProgram.TEXCOORD_ATTRIBUTE + "0", 0);
+        for (int i = 0; i < numBoneWeights; ++i) {
+            attributes[NUM_QUANTIZED_ATTRIBUTES + i] = VertexAttribute.BoneWeight(i);
+        }
+        return new VertexAttributes(attributes);
+    }
+
+    /**
+     * Puts the first 16 bytes of a vertex at the buffer's position, which must be in native byte order.
+     * Positions and texture coordinates must fit in a short, normals in a byte.
+     */
+    public static void packVertex(java.nio.ByteBuffer vertices, int x, int y, int z, int nx, int ny, int nz, int u,
+                                  int v)
+    {
+        vertices.putShort((short) x).putShort((short) y).putShort((short) z).putShort((short) 0);
+        vertices.put((byte) nx).put((byte) ny).put((byte) nz).put((byte) 0);
+        vertices.putShort((short) u).putShort((short) v);
+    }
+
+    /**
+     * Keeps the positions of vertices packed by packVertex, for the bounding box, as they can not be read back
+     * from the mesh's float buffer. Called by MeshAssembler.setVertices.
+     */
+    void setPositions(java.nio.ByteBuffer vertices)
+    {
+        int vertexSize = getVertexAttributes().vertexSize;
+        int numVertices = vertices.remaining() / vertexSize;
+        positions = new short[numVertices * 3];
+        for (int vertex = 0; vertex < numVertices; ++vertex) {
+            int offset = vertices.position() + vertex * vertexSize;
+            for (int i = 0; i < 3; ++i) {
+                positions[vertex * 3 + i] = vertices.getShort(offset + i * 2);
+            }
+        }
+    }
+
+    @Override
+    public void bind(ShaderProgram shader, int[] locations)
+    {
+        super.bind(shader, locations);
+        // The vertex buffer is still bound.
+        VertexAttributes attributes = getVertexAttributes();
+        for (int i = 0; i < NUM_QUANTIZED_ATTRIBUTES; ++i) {
+            VertexAttribute attribute = attributes.get(i);
+            int location = locations == null ? shader.getAttributeLocation(attribute.alias) : locations[i];
+            if (location >= 0) {
+                shader.setVertexAttribute(location, COMPONENTS[i], TYPES[i], NORMALIZED[i], attributes.vertexSize,
+                                          attribute.offset);
+            }
+        }
+    }
+
+    @Override
+    public void calculateBoundingBox(BoundingBox bbox)
+    {
+        bbox.inf();
+        for (int vertex = 0; vertex < positions.length / 3; ++vertex) {
+            extend(bbox, vertex, null);
+        }
+    }
+
+    @Override
+    public BoundingBox extendBoundingBox(BoundingBox out, int offset, int count, Matrix4 transform)
+    {
+        ShortBuffer indices = getIndicesBuffer();
+        boolean indexed = getNumIndices() > 0;
+        for (int i = offset; i < offset + count; ++i) {
+            extend(out, indexed ? indices.get(i) & 0xFFFF : i, transform);
+        }
+        return out;
+    }
+
+    private void extend(BoundingBox out, int vertex, Matrix4 transform)
+    {
+        position.set(positions[vertex * 3], positions[vertex * 3 + 1], positions[vertex * 3 + 2]);
+        if (transform != null) {
+            position.mul(transform);
+        }
+        out.ext(position);
+    }
+
+    private final Vector3 position = new Vector3();
+    private short[] positions = new short[0];
+}
@@ -0,0 +1,161 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.model.Animation;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodeAnimation;
+import com.badlogic.gdx.graphics.g3d.model.NodeKeyframe;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.ArrayMap;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Gives a model read by VifReader the skeleton of an AnimData, so that its skinned meshes are deformed by the
+ * skinning shader, and turns the animation's poses into a libgdx Animation.
+ * Each joint becomes a node called "bone" followed by its number, which is the bone index in the vertex weights.
+ */
+public class SkeletonBuilder
+{
+    // Animations are played at the PS2's 60 frames a second.
+    private static final float FRAMES_PER_SECOND = 60.0f;
+
+    /**
+     * Adds a node for each joint, in the bind pose, and binds every part of the model with bone weights to them.
+     * The bind pose has no rotation and puts each joint at minus its bindingPose.
+     *
+     * @throws IOException if the skeleton is not valid, or the model is weighted to joints it does not have.
+     */
+    public static void addSkeleton(Model model, AnimData animData) throws IOException
+    {
+        model.calculateTransforms();
+        Node[] meshNodes = model.nodes.toArray(Node.class);
+
+        int numBones = animData.skeletonDef.length;
+        // The skinning shader indexes its bone matrices with the vertex weights' bone indices without any check.
+        Set<Mesh> checkedMeshes = Collections.newSetFromMap(new IdentityHashMap<Mesh, Boolean>());
+        for (Node meshNode : meshNodes) {
+            for (NodePart part : meshNode.parts) {
+                if (isSkinned(part) && checkedMeshes.add(part.meshPart.mesh)) {
+                    checkBoneIndices(part.meshPart.mesh, numBones);
+                }
+            }
+        }
+
+        Node[] bones = new Node[numBones];
+        // As in AnimData.BuildPerFrameFKPoses, skeletonDef is the depth of a joint's parent: the parent is the
+        // last joint seen at that depth, and depth 0 is the origin.
+        int[] jointAtDepth = new int[numBones + 2];
+        Arrays.fill(jointAtDepth, -1);
+        for (int bone = 0; bone < numBones; ++bone) {
+            Node node = new Node();
+            node.id = getBoneId(bone);
+            node.translation.set(animData.bindingPose[bone]).scl(-1.0f);
+            int depth = animData.skeletonDef[bone];
+            if (depth < 0 || depth > numBones) {
+                throw new IOException("Joint " + bone + " is at depth " + depth + " in a skeleton of " + numBones
+                                      + " joints");
+            }
+            int parent = jointAtDepth[depth];
+            if (parent < 0) {
+                model.nodes.add(node);
+            } else {
+                node.translation.add(animData.bindingPose[parent]);
+                node.parent = bones[parent];
+                bones[parent].children.add(node);
+            }
+            jointAtDepth[depth + 1] = bone;
+            bones[bone] = node;
+        }
+
+        // A skinned part is drawn without its node's transform, so that goes into the inverse bind transforms.
+        for (Node meshNode : meshNodes) {
+            for (NodePart part : meshNode.parts) {
+                if (!isSkinned(part)) {
+                    continue;
+                }
+                part.invBoneBindTransforms = new ArrayMap<Node, Matrix4>(true, numBones, Node.class, Matrix4.class);
+                part.bones = new Matrix4[numBones];
+                for (int bone = 0; bone < numBones; ++bone) {
+                    Matrix4 invBindTransform = new Matrix4().setToTranslation(animData.bindingPose[bone]);
+                    part.invBoneBindTransforms.put(bones[bone], invBindTransform.mul(meshNode.globalTransform));
+                    part.bones[bone] = new Matrix4();
+                }
+            }
+        }
+        model.calculateTransforms();
+    }
+
+    /**
+     * Adds an animation of the skeleton added by addSkeleton, with a keyframe for every frame of every joint.
+     */
+    public static void addAnimation(Model model, String id, AnimData animData)
+    {
+        Animation animation = new Animation();
+        animation.id = id;
+        animation.duration = Math.max(1, animData.numFrames - 1) / FRAMES_PER_SECOND;
+        for (int bone = 0; bone < animData.skeletonDef.length; ++bone) {
+            NodeAnimation nodeAnimation = new NodeAnimation();
+            nodeAnimation.node = model.getNode(getBoneId(bone));
+            for (int frame = 0; frame < animData.numFrames; ++frame) {
+                AnimData.AnimMeshPose pose = animData.perFramePoses.get(frame).get(bone);
+                if (pose != null) {
+                    NodeKeyframe keyframe = new NodeKeyframe();
+                    keyframe.keytime = frame / FRAMES_PER_SECOND;
+                    keyframe.translation.set(pose.position);
+                    keyframe.rotation.set(pose.rotation).nor();
+                    keyframe.scale.set(1.0f, 1.0f, 1.0f);
+                    nodeAnimation.keyframes.add(keyframe);
+                }
+            }
+            animation.nodeAnimations.add(nodeAnimation);
+        }
+        model.animations.add(animation);
+    }
+
+    private static boolean isSkinned(NodePart part)
+    {
+        VertexAttributes attributes = part.meshPart.mesh.getVertexAttributes();
+        for (int i = 0; i < attributes.size(); ++i) {
+            if (attributes.get(i).usage == VertexAttributes.Usage.BoneWeight) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkBoneIndices(Mesh mesh, int numBones) throws IOException
+    {
+        VertexAttributes attributes = mesh.getVertexAttributes();
+        int stride = attributes.vertexSize / 4;
+        FloatBuffer vertices = mesh.getVerticesBuffer();
+        for (int i = 0; i < attributes.size(); ++i) {
+            VertexAttribute attribute = attributes.get(i);
+            if (attribute.usage != VertexAttributes.Usage.BoneWeight) {
+                continue;
+            }
+            // The bone index is the first of the attribute's two floats.
+            for (int offset = attribute.offset / 4; offset < vertices.limit(); offset += stride) {
+                float bone = vertices.get(offset);
+                if (!(bone >= 0 && bone < numBones)) {
+                    throw new IOException("The model is weighted to bone " + (int) bone + " but the skeleton has "
+                                          + numBones + " joints");
+                }
+            }
+        }
+    }
+
+    private static String getBoneId(int bone)
+    {
+        return "bone" + bone;
+    }
+}
@@ -0,0 +1,210 @@
+package net.ijbrown.snowdroid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Reads individual entries from a GOB file without loading or mapping the whole file.
+ * Only the GOB directory, the header of the wanted lump and the wanted entry are read, using positional
+ * reads into pooled buffers, so the memory used scales with the asset being loaded rather than the archive.
+ * Positional reads do not move the file pointer, so several threads may read from one StreamingGob.
+ */
+public class StreamingGob implements Closeable
+{
+    private static final int DIRECTORY_CHUNK = Gob.RECORD_SIZE * 64;
+
+    public StreamingGob(File file, BufferPool pool) throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.pool = pool;
+    }
+
+    /**
+     * Reads a whole lump.
+     *
+     * @return the lump data, or null if there is no such lump. Pass it to release when finished with it.
+     */
+    public ByteBuffer readLump(String lumpName) throws IOException
+    {
+        DirectoryIndex directory = getDirectory();
+        int lump = directory.find(lumpName);
+        if (lump < 0) {
+            return null;
+        }
+        return read(directory.getOffset(lump), directory.getLength(lump));
+    }
+
+    /**
+     * Reads one entry from a lump, e.g. readEntry("kobold.lmp", "kobold.tex").
+     *
+     * @return the entry data, or null if there is no such entry. Pass it to release when finished with it.
+     */
+    public ByteBuffer readEntry(String lumpName, String entryName) throws IOException
+    {
+        DirectoryIndex directory = getDirectory();
+        int lump = directory.find(lumpName);
+        if (lump < 0) {
+            return null;
+        }
+        int lumpOffset = directory.getOffset(lump);
+        DirectoryIndex lumpDirectory = getLumpDirectory(lumpName, lumpOffset, directory.getLength(lump));
+        int entry = lumpDirectory.find(entryName);
+        if (entry < 0) {
+            return null;
+        }
+        return read(lumpOffset + lumpDirectory.getOffset(entry), lumpDirectory.getLength(entry));
+    }
+
+    /**
+     * Reads a range of the file, e.g. an AssetLocation from the catalog.
+     * Pass the result to release when finished with it.
+     */
+    public ByteBuffer read(int offset, int length) throws IOException
+    {
+        java.nio.ByteBuffer storage = pool.acquire(length);
+        try {
+            readFully(storage, offset);
+        } catch (IOException e) {
+            pool.release(storage);
+            throw e;
+        }
+        storage.flip();
+        ByteBuffer view = new ByteBuffer(storage);
+        synchronized (outstanding) {
+            outstanding.put(view, storage);
+        }
+        return view;
+    }
+
+    /**
+     * Returns the storage of a buffer from one of the read methods to the pool.
+     *
+     * @throws IllegalArgumentException if the buffer was not read from this StreamingGob or was already released.
+     */
+    public void release(ByteBuffer buffer)
+    {
+        java.nio.ByteBuffer storage;
+        synchronized (outstanding) {
+            storage = outstanding.remove(buffer);
+        }
+        if (storage == null) {
+            throw new IllegalArgumentException("The buffer was not read from this StreamingGob or was already "
+                                               + "released");
+        }
+        pool.release(storage);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    private synchronized DirectoryIndex getDirectory() throws IOException
+    {
+        if (directory == null) {
+            directory = readDirectory();
+        }
+        return directory;
+    }
+
+    // Reads the GOB directory in chunks until the terminating record with an empty name.
+    private DirectoryIndex readDirectory() throws IOException
+    {
+        long fileLength = channel.size();
+        java.nio.ByteBuffer chunk = pool.acquire(DIRECTORY_CHUNK);
+        try {
+            java.nio.ByteBuffer records = null;
+            int numEntries = 0;
+            long position = 0;
+            boolean done = false;
+            while (!done) {
+                chunk.clear();
+                chunk.limit((int) Math.min(DIRECTORY_CHUNK, fileLength - position));
+                if (chunk.limit() < Gob.RECORD_SIZE) {
+                    throw new IOException("Unterminated GOB directory");
+                }
+                readFully(chunk, position);
+                chunk.flip();
+                int numRecords = chunk.limit() / Gob.RECORD_SIZE;
+                int chunkEntries = Gob.countRecords(new ByteBuffer(chunk), numRecords);
+                done = chunkEntries < numRecords;
+
+                java.nio.ByteBuffer grown = java.nio.ByteBuffer.allocate((numEntries + chunkEntries) * Gob.RECORD_SIZE);
+                if (records != null) {
+                    records.flip();
+                    grown.put(records);
+                }
+                chunk.limit(chunkEntries * Gob.RECORD_SIZE);
+                grown.put(chunk);
+                records = grown;
+                numEntries += chunkEntries;
+                position += numRecords * Gob.RECORD_SIZE;
+            }
+            records.flip();
+            return Gob.readDirectory(new ByteBuffer(records), numEntries, fileLength);
+        } finally {
+            pool.release(chunk);
+        }
+    }
+
+    // Reads just the header of a lump. The headers are kept, as assets tend to be read from the same lump together.
+    private DirectoryIndex getLumpDirectory(String lumpName, int lumpOffset, int lumpLength) throws IOException
+    {
+        synchronized (lumpDirectories) {
+            DirectoryIndex lumpDirectory = lumpDirectories.get(lumpName);
+            if (lumpDirectory != null) {
+                return lumpDirectory;
+            }
+        }
+        ByteBuffer countData = read(lumpOffset, 4);
+        int numFiles = countData.getLEInt(0);
+        release(countData);
+        if (numFiles < 0 || numFiles > (lumpLength - 4) / 0x40) {
+            throw new IOException(lumpName + " is not a valid lump");
+        }
+
+        ByteBuffer header = read(lumpOffset + 4, numFiles * 0x40);
+        try {
+            DirectoryIndex lumpDirectory = new DirectoryIndex(numFiles, 0x38);
+            for (int fileNo = 0; fileNo < numFiles; ++fileNo) {
+                int headerOffset = fileNo * 0x40;
+                lumpDirectory.add(header, headerOffset, header.getLEInt(headerOffset + 0x38),
+                                  header.getLEInt(headerOffset + 0x3C));
+            }
+            lumpDirectory.sort();
+            synchronized (lumpDirectories) {
+                lumpDirectories.put(lumpName, lumpDirectory);
+            }
+            return lumpDirectory;
+        } finally {
+            release(header);
+        }
+    }
+
+    private void readFully(java.nio.ByteBuffer dst, long position) throws IOException
+    {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Read less bytes then expected when reading file");
+            }
+            position += read;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final Map<ByteBuffer, java.nio.ByteBuffer> outstanding =
+            new IdentityHashMap<ByteBuffer, java.nio.ByteBuffer>();
+    private final Map<String, DirectoryIndex> lumpDirectories = new HashMap<String, DirectoryIndex>();
+    private DirectoryIndex directory;
+}
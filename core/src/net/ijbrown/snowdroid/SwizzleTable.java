@@ -0,0 +1,172 @@
+package net.ijbrown.snowdroid;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup tables for unswizzling palettised textures.
+ *
+ * The textures are uploaded to GS memory as 32 bit pixels (PSMCT32) but are read by the GS as 8 bit
+ * (PSMT8) or 4 bit (PSMT4) indices, which have a different arrangement of pages, blocks and columns.
+ * Each table gives, for each texel of the final image, where its index is in the 32 bit upload buffer:
+ * a byte offset for PSMT8 or a nibble offset for PSMT4. Unswizzling is then a single gather.
+ *
+ * Tables are built once per format and size, and shared.
+ */
+public class SwizzleTable
+{
+    public static final int PSMT8 = 0x13;
+    public static final int PSMT4 = 0x14;
+
+    // Block numbers within a PSMCT32 page, which is 8 x 4 blocks of 8 x 8 pixels.
+    private static final int[] BLOCK32 = {
+            0, 1, 4, 5, 16, 17, 20, 21,
+            2, 3, 6, 7, 18, 19, 22, 23,
+            8, 9, 12, 13, 24, 25, 28, 29,
+            10, 11, 14, 15, 26, 27, 30, 31
+    };
+
+    // Block numbers within a PSMT4 page, which is 4 x 8 blocks of 32 x 16 texels.
+    private static final int[] BLOCK4 = {
+            0, 2, 8, 10,
+            1, 3, 9, 11,
+            4, 6, 12, 14,
+            5, 7, 13, 15,
+            16, 18, 24, 26,
+            17, 19, 25, 27,
+            20, 22, 28, 30,
+            21, 23, 29, 31
+    };
+
+    // The position of each block number within a PSMCT32 page, as x + y * 8.
+    private static final int[] BLOCK32_POS = new int[32];
+
+    static {
+        for (int i = 0; i < 32; ++i) {
+            BLOCK32_POS[BLOCK32[i]] = i;
+        }
+    }
+
+    /**
+     * Gets the width, in 32 bit pixels, of the buffer that the uploads of a texture are written to.
+     */
+    public static int getUploadWidth(int psm, int width)
+    {
+        if (psm == PSMT4) {
+            return roundUp(width, 128) / 2;
+        }
+        return (width / 2 + 0x07) & ~0x07;
+    }
+
+    /**
+     * Gets the height, in 32 bit pixels, of the buffer that the uploads of a texture are written to.
+     */
+    public static int getUploadHeight(int psm, int height)
+    {
+        if (psm == PSMT4) {
+            return roundUp(height, 128) / 4;
+        }
+        return (height / 2 + 0x07) & ~0x07;
+    }
+
+    /**
+     * Gets the table for a width x height texture.
+     * Entry y * width + x is the offset of texel (x, y) in the upload buffer.
+     */
+    public static int[] get(int psm, int width, int height)
+    {
+        Long key = ((long) psm << 48) | ((long) width << 24) | height;
+        synchronized (tables) {
+            int[] table = tables.get(key);
+            if (table == null) {
+                table = psm == PSMT4 ? build4(width, height) : build8(width, height);
+                tables.put(key, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Unswizzles 8 bit indices, writing rows [startRow, endRow) of dest.
+     */
+    public static void gatherIndices8(byte[] uploaded, int[] table, byte[] dest, int width, int startRow, int endRow)
+    {
+        for (int i = startRow * width, end = endRow * width; i < end; ++i) {
+            dest[i] = uploaded[table[i]];
+        }
+    }
+
+    /**
+     * Unswizzles 4 bit indices, writing rows [startRow, endRow) of dest with one index per byte.
+     */
+    public static void gatherIndices4(byte[] uploaded, int[] table, byte[] dest, int width, int startRow, int endRow)
+    {
+        for (int i = startRow * width, end = endRow * width; i < end; ++i) {
+            int nibble = table[i];
+            dest[i] = (byte) ((uploaded[nibble >> 1] >> ((nibble & 1) << 2)) & 0x0F);
+        }
+    }
+
+    // Within a block, PSMT8 and PSMT4 pack 4 rows of texels into each column of 2 rows of 32 bit pixels.
+    // Returns the row of 32 bit pixels within the block for a row of texels.
+    private static int columnRow(int y)
+    {
+        return (((y & (~3)) >> 1) + (y & 1)) & 0x7;
+    }
+
+    // Returns the column of 32 bit pixels within the block. Alternate pairs of texel rows are rotated by 4.
+    private static int columnX(int x, int y)
+    {
+        int swapSelector = (((y + 2) >> 2) & 0x1) * 4;
+        return (x + swapSelector) & 0x7;
+    }
+
+    // PSMT8 pages hold 8 x 4 blocks of 16 x 16 texels, in the same order as PSMCT32, so a PSMT8 block maps onto
+    // the 32 bit block at the same block coordinates.
+    private static int[] build8(int width, int height)
+    {
+        int uploadWidthBytes = getUploadWidth(PSMT8, width) * 4;
+        int[] table = new int[width * height];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int blockLocation = (y >> 4) * 8 * uploadWidthBytes + (x >> 4) * 32;
+                int columnLocation = columnRow(y) * uploadWidthBytes + columnX(x, y) * 4;
+                int byteNum = ((y >> 1) & 1) + ((x >> 2) & 2);     // 0,1,2,3
+                table[y * width + x] = blockLocation + columnLocation + byteNum;
+            }
+        }
+        return table;
+    }
+
+    // PSMT4 pages are 128 x 128 texels, which is the same memory as a 64 x 32 PSMCT32 page, but the blocks are
+    // arranged differently so the mapping has to go via the block number within the page.
+    private static int[] build4(int width, int height)
+    {
+        int uploadWidth = getUploadWidth(PSMT4, width);
+        int[] table = new int[width * height];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int pageX = x >> 7;
+                int pageY = y >> 7;
+                int blockNum = BLOCK4[((y & 0x7f) >> 4) * 4 + ((x & 0x7f) >> 5)];
+                int blockPos = BLOCK32_POS[blockNum];
+
+                int bx = x & 0x1f;
+                int by = y & 0x0f;
+                int px = pageX * 64 + (blockPos & 7) * 8 + columnX(bx, by);
+                int py = pageY * 32 + (blockPos >> 3) * 8 + columnRow(by);
+                int nibble = ((bx >> 3) & 3) * 2 + ((by >> 1) & 1);
+
+                table[y * width + x] = (py * uploadWidth + px) * 8 + nibble;
+            }
+        }
+        return table;
+    }
+
+    private static int roundUp(int value, int multiple)
+    {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    private static final Map<Long, int[]> tables = new HashMap<Long, int[]>();
+}
@@ -0,0 +1,194 @@
+package net.ijbrown.snowdroid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs a set of decoded textures, typically every texture in a lump or level, into a few large pages so that
+ * models using them can share a texture.
+ * Textures are packed on shelves, tallest first. Each texture is surrounded by a copy of its edge pixels so that
+ * filtering does not bleed in the neighbouring texture. Models whose UVs wrap around their texture can not
+ * use an atlas.
+ */
+public class TexAtlas
+{
+    private static final int PADDING = 1;
+
+    /**
+     * Where a texture is in the atlas.
+     */
+    public static class Region
+    {
+        Region(int page, int x, int y, int width, int height, int pageWidth, int pageHeight)
+        {
+            this.page = page;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.pageWidth = pageWidth;
+            this.pageHeight = pageHeight;
+        }
+
+        /**
+         * The scale and offsets to pass to VifReader.readVif, to map texel coordinates to page coordinates.
+         */
+        public float getUScale()
+        {
+            return 1.0f / pageWidth;
+        }
+
+        public float getVScale()
+        {
+            return 1.0f / pageHeight;
+        }
+
+        public float getUOffset()
+        {
+            return (float) x / pageWidth;
+        }
+
+        public float getVOffset()
+        {
+            return (float) y / pageHeight;
+        }
+
+        public final int page;
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        public final int pageWidth;
+        public final int pageHeight;
+    }
+
+    /**
+     * Packs the textures into pages of at most pageSize x pageSize pixels. A texture bigger than that gets
+     * a page of its own.
+     */
+    public static TexAtlas build(Map<String, DecodedTexture> textures, int pageSize)
+    {
+        List<String> names = new ArrayList<String>(textures.keySet());
+        final Map<String, DecodedTexture> sortTextures = textures;
+        Collections.sort(names, new Comparator<String>()
+        {
+            @Override
+            public int compare(String a, String b)
+            {
+                DecodedTexture texA = sortTextures.get(a);
+                DecodedTexture texB = sortTextures.get(b);
+                if (texA.height != texB.height) {
+                    return texB.height - texA.height;
+                }
+                if (texA.width != texB.width) {
+                    return texB.width - texA.width;
+                }
+                return a.compareTo(b);
+            }
+        });
+
+        // Place the textures.
+        List<int[]> pageSizes = new ArrayList<int[]>();
+        Map<String, int[]> placements = new HashMap<String, int[]>();
+        int shelfX = 0;
+        int shelfY = 0;
+        int shelfHeight = 0;
+        int currentPage = -1;
+        for (String name : names) {
+            DecodedTexture texture = textures.get(name);
+            int paddedw = texture.width + PADDING * 2;
+            int paddedh = texture.height + PADDING * 2;
+            if (paddedw > pageSize || paddedh > pageSize) {
+                placements.put(name, new int[]{pageSizes.size(), PADDING, PADDING});
+                pageSizes.add(new int[]{paddedw, paddedh});
+                continue;
+            }
+            if (currentPage >= 0 && shelfX + paddedw > pageSize) {
+                shelfY += shelfHeight;
+                shelfX = 0;
+                shelfHeight = 0;
+            }
+            if (currentPage < 0 || shelfY + paddedh > pageSize) {
+                currentPage = pageSizes.size();
+                pageSizes.add(new int[]{pageSize, 0});
+                shelfX = 0;
+                shelfY = 0;
+                shelfHeight = 0;
+            }
+            placements.put(name, new int[]{currentPage, shelfX + PADDING, shelfY + PADDING});
+            shelfX += paddedw;
+            shelfHeight = Math.max(shelfHeight, paddedh);
+            int[] size = pageSizes.get(currentPage);
+            size[1] = Math.max(size[1], shelfY + shelfHeight);
+        }
+
+        // Shared pages only need to be as tall as their last shelf, rounded up to a power of two.
+        for (int[] size : pageSizes) {
+            if (size[0] == pageSize && size[1] <= pageSize) {
+                int height = 1;
+                while (height < size[1]) {
+                    height <<= 1;
+                }
+                size[1] = height;
+            }
+        }
+
+        TexAtlas atlas = new TexAtlas();
+        for (int[] size : pageSizes) {
+            atlas.pages.add(new DecodedTexture(size[0], size[1], new int[size[0] * size[1]]));
+        }
+        for (String name : names) {
+            int[] placement = placements.get(name);
+            DecodedTexture texture = textures.get(name);
+            DecodedTexture page = atlas.pages.get(placement[0]);
+            copyPadded(texture, page, placement[1], placement[2]);
+            atlas.regions.put(name, new Region(placement[0], placement[1], placement[2], texture.width,
+                                               texture.height, page.width, page.height));
+        }
+        return atlas;
+    }
+
+    /**
+     * Finds where a texture is.
+     *
+     * @return the region, or null if the texture is not in the atlas.
+     */
+    public Region findRegion(String name)
+    {
+        return regions.get(name);
+    }
+
+    public int getNumPages()
+    {
+        return pages.size();
+    }
+
+    public DecodedTexture getPage(int page)
+    {
+        return pages.get(page);
+    }
+
+    // Copies the texture to x, y in the page, with its edge pixels repeated into the padding around it.
+    private static void copyPadded(DecodedTexture texture, DecodedTexture page, int x, int y)
+    {
+        int w = texture.width;
+        int h = texture.height;
+        for (int row = -PADDING; row < h + PADDING; ++row) {
+            int srcRow = Math.min(Math.max(row, 0), h - 1);
+            int srcIdx = srcRow * w;
+            int destIdx = (y + row) * page.width + x;
+            System.arraycopy(texture.pixels, srcIdx, page.pixels, destIdx, w);
+            for (int pad = 1; pad <= PADDING; ++pad) {
+                page.pixels[destIdx - pad] = texture.pixels[srcIdx];
+                page.pixels[destIdx + w - 1 + pad] = texture.pixels[srcIdx + w - 1];
+            }
+        }
+    }
+
+    private final List<DecodedTexture> pages = new ArrayList<DecodedTexture>();
+    private final Map<String, Region> regions = new HashMap<String, Region>();
+}
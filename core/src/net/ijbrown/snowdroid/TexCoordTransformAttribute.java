@@ -0,0 +1,49 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.g3d.Attribute;
+
+/**
+ * Scales and offsets the texture coordinates of a mesh in the vertex shader, so that the mesh can hold them as
+ * integers. Each coordinate becomes (u * scaleU + offsetU, v * scaleV + offsetV).
+ */
+public class TexCoordTransformAttribute extends Attribute
+{
+    public static final String TexCoordTransformAlias = "texCoordTransform";
+    public static final long TexCoordTransform = register(TexCoordTransformAlias);
+
+    public float scaleU;
+    public float scaleV;
+    public float offsetU;
+    public float offsetV;
+
+    public TexCoordTransformAttribute(float scaleU, float scaleV, float offsetU, float offsetV)
+    {
+        super(TexCoordTransform);
+        this.scaleU = scaleU;
+        this.scaleV = scaleV;
+        this.offsetU = offsetU;
+        this.offsetV = offsetV;
+    }
+
+    public TexCoordTransformAttribute(TexCoordTransformAttribute copyFrom)
+    {
+        this(copyFrom.scaleU, copyFrom.scaleV, copyFrom.offsetU, copyFrom.offsetV);
+    }
+
+    @Override
+    public Attribute copy()
+    {
+        return new TexCoordTransformAttribute(this);
+    }
+
+    @Override
+    protected boolean equals(Attribute other)
+    {
+        if (other.type != type) {
+            return false;
+        }
+        TexCoordTransformAttribute transform = (TexCoordTransformAttribute) other;
+        return scaleU == transform.scaleU && scaleV == transform.scaleV && offsetU == transform.offsetU &&
+                offsetV == transform.offsetV;
+    }
+}
@@ -0,0 +1,86 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.g3d.Attributes;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.shaders.BaseShader;
+import com.badlogic.gdx.graphics.g3d.shaders.DefaultShader;
+
+/**
+ * The default shader, except that if the material has a TexCoordTransformAttribute the texture coordinates are
+ * scaled and offset by it, as they are for a QuantizedMesh.
+ */
+public class TexCoordTransformShader extends DefaultShader
+{
+    private static final String TRANSFORM_UNIFORM =
+            "attribute vec2 a_texCoord0;\n" +
+            "uniform vec4 u_texCoordTransform;\n";
+
+    public TexCoordTransformShader(Renderable renderable, Config config)
+    {
+        super(renderable, createConfig(renderable, config));
+        register(new Uniform("u_texCoordTransform", TexCoordTransformAttribute.TexCoordTransform), new Setter()
+        {
+            @Override
+            public boolean isGlobal(BaseShader shader, int inputID)
+            {
+                return false;
+            }
+
+            @Override
+            public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes)
+            {
+                TexCoordTransformAttribute transform = (TexCoordTransformAttribute) combinedAttributes.get(
+                        TexCoordTransformAttribute.TexCoordTransform);
+                shader.set(inputID, transform.scaleU, transform.scaleV, transform.offsetU, transform.offsetV);
+            }
+        });
+    }
+
+    /**
+     * Returns true if the renderable needs this shader.
+     */
+    public static boolean isTransformed(Renderable renderable)
+    {
+        return renderable.material.has(TexCoordTransformAttribute.TexCoordTransform);
+    }
+
+    /**
+     * Copies a config. Unimplemented attributes are ignored, as the default shader does not know the ones
+     * added here.
+     */
+    protected static Config copyConfig(Config config)
+    {
+        Config copy = new Config();
+        copy.vertexShader = config.vertexShader;
+        copy.fragmentShader = config.fragmentShader;
+        copy.numDirectionalLights = config.numDirectionalLights;
+        copy.numPointLights = config.numPointLights;
+        copy.numSpotLights = config.numSpotLights;
+        copy.numBones = config.numBones;
+        copy.ignoreUnimplemented = true;
+        copy.defaultCullFace = config.defaultCullFace;
+        copy.defaultDepthFunc = config.defaultDepthFunc;
+        return copy;
+    }
+
+    private static Config createConfig(Renderable renderable, Config config)
+    {
+        Config transformConfig = copyConfig(config);
+        if (isTransformed(renderable)) {
+            transformConfig.vertexShader = getVertexShader(config.vertexShader);
+        }
+        return transformConfig;
+    }
+
+    // Applies the transform where the vertex shader passes the texture coordinates on.
+    private static String getVertexShader(String vertexShader)
+    {
+        if (vertexShader == null) {
+            vertexShader = getDefaultVertexShader();
+        }
+        return vertexShader
+                .replace("v_texCoords0 = a_texCoord0;",
+                         "v_texCoords0 = a_texCoord0 * u_texCoordTransform.xy + u_texCoordTransform.zw;")
+                .replace("attribute vec2 a_texCoord0;\n", TRANSFORM_UNIFORM);
+    }
+}
@@ -17,11 +17,24 @@ package net.ijbrown.snowdroid;
 
 import com.badlogic.gdx.graphics.Pixmap;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * Decodes a Texture.
+ * An instance can be re-used, but is not thread safe.
  */
-public class TexReader
+public class TexReader implements GSPacketReader.TransferListener
 {
+    /**
+     * The version of the pixels that decode gives. Bump it whenever a change to decoding changes them, so that
+     * textures cooked by the old decoder are cooked again.
+     */
+    public static final int DECODER_VERSION = 1;
+
     // Texture format is something like as follows:
     // 16 byte header.
     //    short width
@@ -30,196 +43,333 @@ public class TexReader
     // Then starting at address 0x80
     // GS Packet
 
-    // Currently it is assumed that all the image data is in one GIFTag segment.
-    // This is not the case for some textures (e.g. chest_large), so the code will
-    // need extending to read the GIFTags properly.
+    // The packet uploads the palette (if any) and then the texture, possibly split over
+    // several transfers and IMAGE segments (e.g. chest_large). The texture is the last thing
+    // uploaded, anything uploaded to a different buffer before it is the palette.
+
+    // Each image segment is recorded as these fields.
+    private static final int T_OFFSET = 0;
+    private static final int T_LENGTH = 1;
+    private static final int T_FIRST_PIXEL = 2;
+    private static final int T_DBP = 3;
+    private static final int T_DSAX = 4;
+    private static final int T_DSAY = 5;
+    private static final int T_RRW = 6;
+    private static final int T_RRH = 7;
+    private static final int TRANSFER_SIZE = 8;
+
+    // Textures with at least this many pixels have their rows split between worker threads
+    // when decoded in parallel, in pieces of about ROW_SPLIT_PIXELS.
+    private static final int PARALLEL_MIN_PIXELS = 256 * 256;
+    private static final int ROW_SPLIT_PIXELS = 128 * 128;
+
+    private final GSPacketReader gsPacketReader = new GSPacketReader();
+    private int[] transfers = new int[TRANSFER_SIZE * 8];
+    private int numTransfers;
 
     public Pixmap read(ByteBuffer fileDataBuffer)
     {
-        Pixmap pixmap = null;
-        int finalw = fileDataBuffer.getLEShort(0);
-        int finalh = fileDataBuffer.getLEShort(2);
-        int sourcew = finalw;
-        int sourceh = finalh;
-        PalEntry[] pixels = null;
-
-        int curIdx = 0x80;
-        GIFTag gifTag = new GIFTag();
-        gifTag.parse(fileDataBuffer, curIdx);
-
-        // This is basically heuristics
-        if (gifTag.nloop == 4) {
-
-            int palw = fileDataBuffer.getLEShort(curIdx + 0x30);
-            int palh = fileDataBuffer.getLEShort(curIdx + 0x34);
-
-            curIdx += 0x50;
-            GIFTag gifTag2 = new GIFTag();
-            gifTag2.parse(fileDataBuffer, curIdx);
-
-            // 8 bit palletised
-            PalEntry[] palette = PalEntry.readPalette(fileDataBuffer, curIdx + 0x10, palw, palh);
-
-            palette = PalEntry.unswizzlePalette(palette);
-
-            int palLen = palw * palh * 4;
-            curIdx += (palLen + 0x10);
-
-            GIFTag gifTag50 = new GIFTag();
-            gifTag50.parse(fileDataBuffer, curIdx);
-            curIdx += 0x20;
-
-            int dbw = (sourcew / 2 + 0x07) & ~0x07;
-            int dbh = (sourceh / 2 + 0x07) & ~0x07;
-
-            int endIndex = fileDataBuffer.len;
-
-            // The following should be a loop, there are repeating sections
-            while (curIdx < endIndex - 0x10) {
-                GIFTag gifTag3 = new GIFTag();
-                gifTag3.parse(fileDataBuffer, curIdx);
-
-                int dimOffset = 0x10;
-
-                int thisRrw = fileDataBuffer.getLEShort(curIdx + dimOffset);
-                int thisRrh = fileDataBuffer.getLEShort(curIdx + dimOffset + 4);
+        DecodedTexture decoded = decode(fileDataBuffer);
+        return decoded == null ? null : decoded.toPixmap();
+    }
 
-                int startx = fileDataBuffer.getLEShort(curIdx + dimOffset + 20);
-                int starty = fileDataBuffer.getLEShort(curIdx + dimOffset + 22);
+    /**
+     * Decodes a texture to RGBA8888 pixels.
+     *
+     * @return the decoded texture, or null if the texture format is not understood.
+     */
+    public DecodedTexture decode(ByteBuffer fileDataBuffer)
+    {
+        return decode(fileDataBuffer, false);
+    }
 
-                curIdx += gifTag.nloop * 0x10 + 0x10;
-                pixels = readPixels32(pixels, fileDataBuffer, palette, curIdx, startx, starty, thisRrw, thisRrh, dbw,
-                                      dbh);
-                curIdx += thisRrw * thisRrh * 4;
+    /**
+     * Decodes several textures at once, each on a thread of the worker pool.
+     * Large textures also have their rows split between the threads.
+     *
+     * @return the decoded textures in the same order, with null for any texture whose format is not understood.
+     */
+    public static List<DecodedTexture> decodeAll(List<ByteBuffer> fileDataBuffers)
+    {
+        final List<DecodeTask> tasks = new ArrayList<DecodeTask>(fileDataBuffers.size());
+        for (ByteBuffer fileDataBuffer : fileDataBuffers) {
+            tasks.add(new DecodeTask(fileDataBuffer));
+        }
+        WorkerPool.get().invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(tasks);
             }
+        });
+        List<DecodedTexture> decoded = new ArrayList<DecodedTexture>(tasks.size());
+        for (DecodeTask task : tasks) {
+            decoded.add(task.getRawResult());
+        }
+        return decoded;
+    }
 
-            if (palLen != 64) {
-                pixels = unswizzle8bpp(pixels, dbw * 2, dbh * 2);
-                sourcew = dbw * 2;
-                sourceh = dbh * 2;
+    /**
+     * Decodes a texture to RGBA8888 pixels.
+     * If parallel is set, the rows of a large texture are expanded on the threads of the worker pool.
+     * The pixels are the same either way.
+     *
+     * @return the decoded texture, or null if the texture format is not understood.
+     */
+    public DecodedTexture decode(ByteBuffer fileDataBuffer, boolean parallel)
+    {
+        Uploads uploads = readUploads(fileDataBuffer);
+        if (uploads == null) {
+            return null;
+        }
+        int finalw = uploads.width;
+        int finalh = uploads.height;
+        int psm = uploads.psm;
+        int[] palette = uploads.palette;
+        byte[] uploaded = uploads.uploaded;
+
+        int[] pixels = new int[finalw * finalh];
+        int[] table = palette == null ? null : SwizzleTable.get(psm, finalw, finalh);
+        if (parallel && finalw * finalh >= PARALLEL_MIN_PIXELS) {
+            RowTask task = new RowTask(psm, uploaded, palette, table, pixels, finalw, 0, finalh);
+            if (ForkJoinTask.inForkJoinPool()) {
+                task.invoke();
             } else {
-                sourcew = dbw;
-                sourceh = dbh;
+                WorkerPool.get().invoke(task);
             }
+        } else {
+            expandRows(psm, uploaded, palette, table, pixels, finalw, 0, finalh);
+        }
+        return new DecodedTexture(finalw, finalh, pixels);
+    }
 
-        } else if (gifTag.nloop == 3) {
-            GIFTag gifTag2 = new GIFTag();
-            gifTag2.parse(fileDataBuffer, 0xC0);
-            System.out.println(gifTag2.toString());
-
-            if (gifTag2.flg == 2) {
-                // image mode
-                pixels = readPixels32(pixels, fileDataBuffer, 0xD0, finalw, finalh);
-            }
+    /**
+     * Decodes a palletised texture to its indices and palette, without expanding it to RGBA.
+     *
+     * @return the decoded texture, or null if the texture is not palletised or the format is not understood.
+     */
+    public IndexedTexture decodeIndexed(ByteBuffer fileDataBuffer)
+    {
+        Uploads uploads = readUploads(fileDataBuffer);
+        if (uploads == null || uploads.palette == null) {
+            return null;
+        }
+        int finalw = uploads.width;
+        int finalh = uploads.height;
+        byte[] indices = new byte[finalw * finalh];
+        int[] table = SwizzleTable.get(uploads.psm, finalw, finalh);
+        if (uploads.psm == SwizzleTable.PSMT4) {
+            SwizzleTable.gatherIndices4(uploads.uploaded, table, indices, finalw, 0, finalh);
+        } else {
+            SwizzleTable.gatherIndices8(uploads.uploaded, table, indices, finalw, 0, finalh);
         }
-        if (finalw != 0 && pixels != null) {
-            pixmap = new Pixmap(finalw, finalh, Pixmap.Format.RGBA8888);
+        return new IndexedTexture(finalw, finalh, indices, uploads.palette);
+    }
 
-            for (int y = 0; y < sourceh; ++y) {
-                for (int x = 0; x < sourcew; ++x) {
-                    PalEntry pixel = pixels[y * sourcew + x];
-                    if (pixel != null) {
-                        pixmap.drawPixel(x, y, pixel.rgba());
-                    }
-                }
+    /**
+     * True if a texture is palletised, so that decodeIndexed can decode it. Only the GS packet is walked, nothing
+     * is decoded.
+     */
+    public boolean isPalletised(ByteBuffer fileDataBuffer)
+    {
+        if (fileDataBuffer.getLEShort(0) <= 0 || fileDataBuffer.getLEShort(2) <= 0) {
+            return false;
+        }
+        numTransfers = 0;
+        gsPacketReader.read(fileDataBuffer, 0x80, this);
+        for (int i = 0; i < numTransfers - 1; ++i) {
+            if (transfers[i * TRANSFER_SIZE + T_DBP] != transfers[(numTransfers - 1) * TRANSFER_SIZE + T_DBP]) {
+                return true;
             }
         }
-        return pixmap;
+        return false;
     }
 
-    private PalEntry[] unswizzle8bpp(PalEntry[] pixels, int w, int h)
+    // Walks the GS packet and collects the palette and the uploaded texture data.
+    private Uploads readUploads(ByteBuffer fileDataBuffer)
     {
-        PalEntry[] unswizzled = new PalEntry[pixels.length];
-
-        for (int y = 0; y < h; ++y) {
-            for (int x = 0; x < w; ++x) {
-
-                int block_location = (y & (~0xf)) * w + (x & (~0xf)) * 2;
-                int swap_selector = (((y + 2) >> 2) & 0x1) * 4;
-                int posY = (((y & (~3)) >> 1) + (y & 1)) & 0x7;
-                int column_location = posY * w * 2 + ((x + swap_selector) & 0x7) * 4;
+        int finalw = fileDataBuffer.getLEShort(0);
+        int finalh = fileDataBuffer.getLEShort(2);
+        if (finalw <= 0 || finalh <= 0) {
+            return null;
+        }
 
-                int byte_num = ((y >> 1) & 1) + ((x >> 2) & 2);     // 0,1,2,3
+        numTransfers = 0;
+        gsPacketReader.read(fileDataBuffer, 0x80, this);
+        if (numTransfers == 0) {
+            return null;
+        }
 
-                int idx = block_location + column_location + byte_num;
-                if (idx >= pixels.length) {
-                    System.out.println("x");
-                } else {
-                    unswizzled[(y * w) + x] = pixels[idx];
-                }
+        int textureDbp = transfers[(numTransfers - 1) * TRANSFER_SIZE + T_DBP];
+        int[] palette = null;
+        for (int i = 0; i < numTransfers && palette == null; ++i) {
+            int t = i * TRANSFER_SIZE;
+            if (transfers[t + T_DBP] != textureDbp) {
+                palette = PalEntry.readPaletteRGBA(fileDataBuffer, transfers[t + T_OFFSET], transfers[t + T_RRW],
+                                                   transfers[t + T_RRH]);
+                palette = PalEntry.unswizzlePalette(palette);
             }
         }
 
-        return unswizzled;
+        // Palletised textures have their indices uploaded as 32 bit pixels, so they have to be unswizzled.
+        int psm = 0;
+        int uploadw = finalw;
+        int uploadh = finalh;
+        if (palette != null) {
+            psm = palette.length == 16 ? SwizzleTable.PSMT4 : SwizzleTable.PSMT8;
+            uploadw = SwizzleTable.getUploadWidth(psm, finalw);
+            uploadh = SwizzleTable.getUploadHeight(psm, finalh);
+        }
+        byte[] uploaded = new byte[uploadw * uploadh * 4];
+        for (int i = 0; i < numTransfers; ++i) {
+            int t = i * TRANSFER_SIZE;
+            if (transfers[t + T_DBP] == textureDbp) {
+                readUpload(fileDataBuffer, transfers[t + T_OFFSET], transfers[t + T_LENGTH],
+                           transfers[t + T_FIRST_PIXEL], transfers[t + T_DSAX], transfers[t + T_DSAY],
+                           transfers[t + T_RRW], transfers[t + T_RRH], uploaded, uploadw, uploadh);
+            }
+        }
+        return new Uploads(finalw, finalh, psm, palette, uploaded);
     }
 
+    @Override
+    public void imageTransfer(GSPacketReader reader, ByteBuffer data, int offset, int length, int firstPixel)
+    {
+        if (transfers.length < (numTransfers + 1) * TRANSFER_SIZE) {
+            int[] newTransfers = new int[transfers.length * 2];
+            System.arraycopy(transfers, 0, newTransfers, 0, transfers.length);
+            transfers = newTransfers;
+        }
+        int t = numTransfers * TRANSFER_SIZE;
+        transfers[t + T_OFFSET] = offset;
+        transfers[t + T_LENGTH] = length;
+        transfers[t + T_FIRST_PIXEL] = firstPixel;
+        transfers[t + T_DBP] = reader.dbp;
+        transfers[t + T_DSAX] = reader.dsax;
+        transfers[t + T_DSAY] = reader.dsay;
+        transfers[t + T_RRW] = reader.rrw;
+        transfers[t + T_RRH] = reader.rrh;
+        ++numTransfers;
+    }
 
-    private PalEntry[] readPixels32(PalEntry[] pixels, ByteBuffer fileDataBuffer,
-                                    PalEntry[] palette, int startOffset,
-                                    int startx, int starty,
-                                    int rrw, int rrh, int dbw, int dbh)
+    // Copies an image segment of 32 bit pixels into the upload buffer, clipping to the buffer.
+    // The segment starts at pixel firstPixel of the rrw x rrh transfer at startx, starty.
+    private void readUpload(ByteBuffer fileDataBuffer, int offset, int length, int firstPixel, int startx, int starty,
+                            int rrw, int rrh, byte[] uploaded, int uploadw, int uploadh)
     {
-        byte[] fileData = fileDataBuffer.data;
-        int idx = startOffset + fileDataBuffer.startOffset;
-        if (palette.length == 256) {
-            int numDestBytes = dbh * dbw * 4;
-            int widthBytes = dbw * 4;
-            if (pixels == null) {
-                pixels = new PalEntry[numDestBytes];
+        if (rrw <= 0) {
+            return;
+        }
+        int pixel = firstPixel;
+        int endPixel = Math.min(firstPixel + length / 4, rrw * rrh);
+        while (pixel < endPixel) {
+            int x = startx + pixel % rrw;
+            int y = starty + pixel / rrw;
+            if (y >= uploadh) {
+                break;
             }
-            for (int y = 0; y < rrh && (y + starty) < dbh; ++y) {
-                for (int x = 0; x < rrw; ++x) {
-                    int destIdx = (y + starty) * widthBytes + (x + startx) * 4;
-                    pixels[destIdx++] = palette[fileData[idx++] & 0xFF];
-                    pixels[destIdx++] = palette[fileData[idx++] & 0xFF];
-                    pixels[destIdx++] = palette[fileData[idx++] & 0xFF];
-                    pixels[destIdx] = palette[fileData[idx++] & 0xFF];
-                }
+            int run = Math.min(rrw - pixel % rrw, endPixel - pixel);
+            int copyw = Math.min(run, uploadw - x);
+            if (copyw > 0) {
+                fileDataBuffer.getBytes(offset, uploaded, (y * uploadw + x) * 4, copyw * 4);
             }
-            return pixels;
+            offset += run * 4;
+            pixel += run;
+        }
+    }
+
+    // Converts rows [startRow, endRow) of the upload buffer to RGBA8888, through the palette if there is one.
+    private static void expandRows(int psm, byte[] uploaded, int[] palette, int[] table, int[] pixels, int width,
+                                   int startRow, int endRow)
+    {
+        PixelKernels kernels = PixelKernels.get();
+        int start = startRow * width;
+        int end = endRow * width;
+        if (palette == null) {
+            kernels.rgba32(uploaded, pixels, start, end);
+        } else if (psm == SwizzleTable.PSMT4) {
+            kernels.gather4(uploaded, palette, table, pixels, start, end);
         } else {
-            int numDestBytes = rrh * dbw;
-            if (pixels == null) {
-                pixels = new PalEntry[numDestBytes];
-            }
-            boolean lowbit = false;
-            for (int y = 0; y < rrh; ++y) {
-                for (int x = 0; x < rrw; ++x) {
-                    int destIdx = (y + starty) * dbw + x + startx;
-                    if (lowbit) {
-                        pixels[destIdx] = palette[fileData[idx] >> 4 & 0x0F];
-                        idx++;
-                    } else {
-                        pixels[destIdx] = palette[fileData[idx] & 0x0F];
-                    }
-                    lowbit = !lowbit;
-                }
-            }
-            return pixels;
+            kernels.gather8(uploaded, palette, table, pixels, start, end);
         }
     }
 
-    private PalEntry[] readPixels32(PalEntry[] pixels, ByteBuffer fileDataBuffer, int startOffset, int w, int h)
+    private static class Uploads
     {
-        byte[] fileData = fileDataBuffer.data;
-        int numPixels = w * h;
-        if (null == pixels) {
-            pixels = new PalEntry[numPixels];
+        Uploads(int width, int height, int psm, int[] palette, byte[] uploaded)
+        {
+            this.width = width;
+            this.height = height;
+            this.psm = psm;
+            this.palette = palette;
+            this.uploaded = uploaded;
         }
-        int destIdx = 0;
-        int endOffset = startOffset + numPixels * 4;
-        for (int idx = startOffset + fileDataBuffer.startOffset; idx < endOffset; ) {
-            PalEntry pe = new PalEntry();
-            pe.r = fileData[idx++];
-            pe.g = fileData[idx++];
-            pe.b = fileData[idx++];
-            pe.a = fileData[idx++];
 
-            pixels[destIdx++] = pe;
+        final int width;
+        final int height;
+        final int psm;
+        final int[] palette;
+        final byte[] uploaded;
+    }
+
+    private static class DecodeTask extends RecursiveTask<DecodedTexture>
+    {
+        private static final long serialVersionUID = 1L;
+
+        DecodeTask(ByteBuffer fileDataBuffer)
+        {
+            this.fileDataBuffer = fileDataBuffer;
         }
 
-        return pixels;
+        @Override
+        protected DecodedTexture compute()
+        {
+            return new TexReader().decode(fileDataBuffer, true);
+        }
+
+        private final ByteBuffer fileDataBuffer;
     }
 
+    // Splits the rows in half until each piece is about ROW_SPLIT_PIXELS. The rows are independent
+    // and each is written by exactly one task.
+    private static class RowTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        RowTask(int psm, byte[] uploaded, int[] palette, int[] table, int[] pixels, int width, int startRow,
+                int endRow)
+        {
+            this.psm = psm;
+            this.uploaded = uploaded;
+            this.palette = palette;
+            this.table = table;
+            this.pixels = pixels;
+            this.width = width;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int numRows = endRow - startRow;
+            if (numRows < 2 || numRows * width <= ROW_SPLIT_PIXELS) {
+                expandRows(psm, uploaded, palette, table, pixels, width, startRow, endRow);
+            } else {
+                int midRow = startRow + numRows / 2;
+                invokeAll(new RowTask(psm, uploaded, palette, table, pixels, width, startRow, midRow),
+                          new RowTask(psm, uploaded, palette, table, pixels, width, midRow, endRow));
+            }
+        }
 
+        private final int psm;
+        private final byte[] uploaded;
+        private final int[] palette;
+        private final int[] table;
+        private final int[] pixels;
+        private final int width;
+        private final int startRow;
+        private final int endRow;
+    }
 }
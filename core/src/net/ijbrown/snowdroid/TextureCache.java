@@ -0,0 +1,342 @@
+package net.ijbrown.snowdroid;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches decoded textures, keyed by (gob, lump, texture name), so that models sharing a texture only decode and
+ * upload it once.
+ * The decoded pixels and the GPU textures are held in separate LRU caches, each with its own byte budget.
+ * GPU textures are reference counted: a texture handed out by acquire stays alive until it is released, only
+ * unreferenced textures are evicted. If every texture is referenced the texture cache can exceed its budget.
+ * Textures must be acquired, released and disposed on the GL thread.
+ */
+public class TextureCache
+{
+    public TextureCache(AssetCatalog catalog, long maxPixelBytes, long maxTextureBytes)
+    {
+        this.catalog = catalog;
+        this.maxPixelBytes = maxPixelBytes;
+        this.maxTextureBytes = maxTextureBytes;
+    }
+
+    /**
+     * Sets where to look for cooked textures. A texture with a valid cooked copy is uploaded from that
+     * instead of being decoded.
+     */
+    public synchronized void setCookedTextures(CookedTextures cookedTextures)
+    {
+        this.cookedTextures = cookedTextures;
+    }
+
+    /**
+     * Gets the decoded pixels of a texture, decoding it if it is not in the cache.
+     * The returned pixels must not be modified.
+     *
+     * @return the decoded texture, or null if the texture format is not understood.
+     */
+    public DecodedTexture getDecoded(String gobName, String lumpName, String texName) throws IOException
+    {
+        Key key = new Key(gobName, lumpName, texName);
+        synchronized (this) {
+            DecodedTexture decoded = pixelCache.get(key);
+            if (decoded != null) {
+                ++pixelHits;
+                return decoded;
+            }
+            ++pixelMisses;
+        }
+
+        // Decode outside the lock so that other threads can use the cache meanwhile.
+        AssetLocation location = catalog.find(gobName, lumpName, texName);
+        if (location == null) {
+            throw new IOException("Failed to find " + key);
+        }
+        DecodedTexture decoded = new TexReader().decode(catalog.open(location));
+        if (decoded == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            DecodedTexture existing = pixelCache.get(key);
+            if (existing != null) {
+                // Another thread decoded it first.
+                return existing;
+            }
+            pixelCache.put(key, decoded);
+            pixelBytes += decoded.getSizeInBytes();
+            evictPixels();
+        }
+        return decoded;
+    }
+
+    /**
+     * Decodes the textures that are not already cached, in parallel on the worker pool.
+     */
+    public void preload(String gobName, String lumpName, List<String> texNames) throws IOException
+    {
+        List<Key> keys = new ArrayList<Key>(texNames.size());
+        List<ByteBuffer> fileDataBuffers = new ArrayList<ByteBuffer>(texNames.size());
+        for (String texName : texNames) {
+            Key key = new Key(gobName, lumpName, texName);
+            synchronized (this) {
+                if (pixelCache.containsKey(key)) {
+                    continue;
+                }
+            }
+            AssetLocation location = catalog.find(gobName, lumpName, texName);
+            if (location == null) {
+                throw new IOException("Failed to find " + key);
+            }
+            keys.add(key);
+            fileDataBuffers.add(catalog.open(location));
+        }
+
+        List<DecodedTexture> decoded = TexReader.decodeAll(fileDataBuffers);
+        synchronized (this) {
+            for (int i = 0; i < keys.size(); ++i) {
+                if (decoded.get(i) != null && !pixelCache.containsKey(keys.get(i))) {
+                    pixelCache.put(keys.get(i), decoded.get(i));
+                    pixelBytes += decoded.get(i).getSizeInBytes();
+                }
+            }
+            evictPixels();
+        }
+    }
+
+    /**
+     * Gets the GPU texture for a texture, adding a reference to it. Each call must be matched by a call to release.
+     *
+     * @return the texture, or null if the texture format is not understood.
+     */
+    public Texture acquire(String gobName, String lumpName, String texName) throws IOException
+    {
+        Key key = new Key(gobName, lumpName, texName);
+        synchronized (this) {
+            TextureEntry entry = textureCache.get(key);
+            if (entry != null) {
+                ++textureHits;
+                ++entry.refCount;
+                return entry.texture;
+            }
+            ++textureMisses;
+        }
+
+        // Load outside the lock, as with getDecoded, so that a miss does not hold up other threads.
+        TextureEntry entry = loadCooked(key);
+        if (entry == null) {
+            DecodedTexture decoded = getDecoded(gobName, lumpName, texName);
+            if (decoded == null) {
+                return null;
+            }
+            Pixmap pixmap = decoded.toPixmap();
+            entry = new TextureEntry(new Texture(pixmap), decoded.getSizeInBytes());
+            pixmap.dispose();
+        }
+
+        synchronized (this) {
+            TextureEntry existing = textureCache.get(key);
+            if (existing != null) {
+                // Acquired by another call meanwhile.
+                entry.texture.dispose();
+                entry = existing;
+            } else {
+                textureCache.put(key, entry);
+                entries.put(entry.texture, entry);
+                textureBytes += entry.sizeInBytes;
+            }
+            ++entry.refCount;
+            evictTextures();
+            return entry.texture;
+        }
+    }
+
+    /**
+     * Releases a reference to a texture obtained from acquire. Once it is unreferenced, the texture
+     * stays in the cache until it is evicted.
+     */
+    public synchronized void release(Texture texture)
+    {
+        TextureEntry entry = entries.get(texture);
+        if (entry == null || entry.refCount == 0) {
+            throw new IllegalStateException("Texture was not acquired from this cache");
+        }
+        --entry.refCount;
+        evictTextures();
+    }
+
+    /**
+     * Disposes every texture in the cache, whether or not it is still referenced, and drops the decoded pixels.
+     */
+    public synchronized void dispose()
+    {
+        for (TextureEntry entry : textureCache.values()) {
+            entry.texture.dispose();
+        }
+        textureCache.clear();
+        entries.clear();
+        textureBytes = 0;
+        pixelCache.clear();
+        pixelBytes = 0;
+    }
+
+    public synchronized int getPixelHits()
+    {
+        return pixelHits;
+    }
+
+    public synchronized int getPixelMisses()
+    {
+        return pixelMisses;
+    }
+
+    public synchronized int getTextureHits()
+    {
+        return textureHits;
+    }
+
+    public synchronized int getTextureMisses()
+    {
+        return textureMisses;
+    }
+
+    public synchronized long getPixelBytes()
+    {
+        return pixelBytes;
+    }
+
+    public synchronized long getTextureBytes()
+    {
+        return textureBytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "pixels: " + pixelCache.size() + " textures, " + pixelBytes + " bytes, " + pixelHits + " hits, " +
+                pixelMisses + " misses; textures: " + textureCache.size() + " textures, " + textureBytes + " bytes, " +
+                textureHits + " hits, " + textureMisses + " misses";
+    }
+
+    private TextureEntry loadCooked(Key key) throws IOException
+    {
+        CookedTextures cookedTextures;
+        synchronized (this) {
+            cookedTextures = this.cookedTextures;
+        }
+        if (cookedTextures == null) {
+            return null;
+        }
+        AssetLocation location = catalog.find(key.gobName, key.lumpName, key.texName);
+        if (location == null) {
+            throw new IOException("Failed to find " + key);
+        }
+        CookedTextureData data = cookedTextures.load(location, catalog.open(location));
+        if (data == null || !data.isSupported()) {
+            return null;
+        }
+        Texture texture = new Texture(data);
+        if (data.getNumLevels() > 1) {
+            texture.setFilter(Texture.TextureFilter.MipMapNearestNearest, Texture.TextureFilter.Nearest);
+        }
+        return new TextureEntry(texture, data.getSizeInBytes());
+    }
+
+    private void evictPixels()
+    {
+        Iterator<DecodedTexture> it = pixelCache.values().iterator();
+        while (pixelBytes > maxPixelBytes && it.hasNext()) {
+            DecodedTexture decoded = it.next();
+            pixelBytes -= decoded.getSizeInBytes();
+            it.remove();
+        }
+    }
+
+    private void evictTextures()
+    {
+        Iterator<TextureEntry> it = textureCache.values().iterator();
+        while (textureBytes > maxTextureBytes && it.hasNext()) {
+            TextureEntry entry = it.next();
+            if (entry.refCount == 0) {
+                entry.texture.dispose();
+                entries.remove(entry.texture);
+                textureBytes -= entry.sizeInBytes;
+                it.remove();
+            }
+        }
+    }
+
+    private static class Key
+    {
+        Key(String gobName, String lumpName, String texName)
+        {
+            this.gobName = gobName;
+            this.lumpName = lumpName;
+            this.texName = texName;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return gobName.equals(other.gobName) && lumpName.equals(other.lumpName) && texName.equals(other.texName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (gobName.hashCode() * 31 + lumpName.hashCode()) * 31 + texName.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return gobName + ":" + lumpName + ":" + texName;
+        }
+
+        final String gobName;
+        final String lumpName;
+        final String texName;
+    }
+
+    private static class TextureEntry
+    {
+        TextureEntry(Texture texture, int sizeInBytes)
+        {
+            this.texture = texture;
+            this.sizeInBytes = sizeInBytes;
+        }
+
+        final Texture texture;
+        final int sizeInBytes;
+        int refCount;
+    }
+
+    private final AssetCatalog catalog;
+    private CookedTextures cookedTextures;
+    private final long maxPixelBytes;
+    private final long maxTextureBytes;
+
+    // Access ordered, so iteration starts at the least recently used.
+    private final Map<Key, DecodedTexture> pixelCache = new LinkedHashMap<Key, DecodedTexture>(16, 0.75f, true);
+    private final Map<Key, TextureEntry> textureCache = new LinkedHashMap<Key, TextureEntry>(16, 0.75f, true);
+    private final Map<Texture, TextureEntry> entries = new IdentityHashMap<Texture, TextureEntry>();
+
+    private long pixelBytes;
+    private long textureBytes;
+    private int pixelHits;
+    private int pixelMisses;
+    private int textureHits;
+    private int textureMisses;
+}
@@ -0,0 +1,217 @@
+package net.ijbrown.snowdroid;
+
+/**
+ * Interprets a VIF command stream in one pass, passing what each command does to a visitor.
+ * Commands are dispatched through a table indexed by the command number, and UNPACK data is decoded through
+ * a table indexed by its vn and vl fields, so visitors are handed plain int arrays rather than packed data.
+ * An instance can be re-used, but is not thread safe.
+ */
+public class VifInterpreter
+{
+    public interface Visitor
+    {
+        /**
+         * Called for each UNPACK command. The values are one int per component, numVectors * (vn + 1) of them,
+         * sign extended unless usn is set. V4-5 data is expanded to four 8 bit components.
+         * The values array is only valid during the call, it is re-used for the next UNPACK.
+         *
+         * @param address the VU memory address the data is unpacked to, in quadwords.
+         * @param masked  true if the data is written through the STMASK mask.
+         */
+        void unpack(int vn, int vl, int address, boolean usn, boolean masked, int[] values, int numVectors);
+
+        /**
+         * Called for each DIRECT or DIRECTHL command, whose data is a GS packet.
+         */
+        void direct(ByteBuffer data, int offset, int numQuadwords);
+
+        /**
+         * Called for each MSCAL or MSCALF command, which starts the microcode at address.
+         */
+        void mscal(int address);
+
+        /**
+         * Called for every other command.
+         */
+        void command(int command, int immediate, int num);
+    }
+
+    private static final int KIND_UNKNOWN = 0;
+    private static final int KIND_FIXED = 1;
+    private static final int KIND_MSCAL = 2;
+    private static final int KIND_DIRECT = 3;
+    private static final int KIND_MPG = 4;
+    private static final int KIND_UNPACK = 5;
+
+    // The kind of each command, and the size in bytes of the fixed size ones.
+    private static final byte[] commandKinds = new byte[0x80];
+    private static final byte[] commandSizes = new byte[0x80];
+
+    // The number of components and bits per component of each UNPACK format, indexed by vn * 4 + vl.
+    // A zero means the format does not exist.
+    private static final byte[] unpackComponents = new byte[16];
+    private static final byte[] unpackBits = new byte[16];
+
+    static {
+        int[] fixed4 = {0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x10, 0x11, 0x13, 0x17};
+        for (int command : fixed4) {
+            setCommand(command, KIND_FIXED, 4);
+        }
+        setCommand(0x20, KIND_FIXED, 8);      // STMASK
+        setCommand(0x30, KIND_FIXED, 20);     // STROW
+        setCommand(0x31, KIND_FIXED, 20);     // STCOL
+        setCommand(0x14, KIND_MSCAL, 4);      // MSCAL
+        setCommand(0x15, KIND_MSCAL, 4);      // MSCALF
+        setCommand(0x4A, KIND_MPG, 0);
+        setCommand(0x50, KIND_DIRECT, 0);     // DIRECT
+        setCommand(0x51, KIND_DIRECT, 0);     // DIRECTHL
+        for (int command = 0x60; command < 0x80; ++command) {
+            setCommand(command, KIND_UNPACK, 0);
+        }
+
+        for (int vn = 0; vn < 4; ++vn) {
+            for (int vl = 0; vl < 3; ++vl) {
+                unpackComponents[vn * 4 + vl] = (byte) (vn + 1);
+                unpackBits[vn * 4 + vl] = (byte) (32 >> vl);
+            }
+        }
+        // V4-5 packs a 5551 colour into 16 bits.
+        unpackComponents[3 * 4 + 3] = 4;
+        unpackBits[3 * 4 + 3] = 5;
+    }
+
+    /**
+     * Interprets the commands from offset up to endOffset.
+     */
+    public void read(ByteBuffer data, int offset, int endOffset, Visitor visitor)
+    {
+        while (offset < endOffset) {
+            int command = data.getUnsignedByte(offset + 3) & 0x7F;
+            int num = data.getUnsignedByte(offset + 2);
+            int immediate = data.getLEUShort(offset);
+            switch (commandKinds[command]) {
+                case KIND_FIXED:
+                    visitor.command(command, immediate, num);
+                    offset += commandSizes[command];
+                    break;
+                case KIND_MSCAL:
+                    visitor.mscal(immediate);
+                    offset += commandSizes[command];
+                    break;
+                case KIND_DIRECT:
+                    int numQuadwords = immediate == 0 ? 0x10000 : immediate;
+                    visitor.direct(data, offset + 4, numQuadwords);
+                    offset += 4 + numQuadwords * 16;
+                    break;
+                case KIND_MPG:
+                    // Microcode upload, num pairs of 32 bit instructions.
+                    visitor.command(command, immediate, num);
+                    offset += 4 + (num == 0 ? 256 : num) * 8;
+                    break;
+                case KIND_UNPACK:
+                    int nextOffset = unpack(data, offset, command, num, immediate, visitor);
+                    if (nextOffset < 0) {
+                        System.out.println("Unknown vnvl combination: vn=" + ((command >> 2) & 3) + ", vl=" +
+                                                   (command & 3));
+                        return;
+                    }
+                    offset = nextOffset;
+                    break;
+                default:
+                    System.out.println("Unknown command: " + command);
+                    return;
+            }
+        }
+    }
+
+    // Decodes an UNPACK and returns the offset of the next command, or -1 if the format does not exist.
+    private int unpack(ByteBuffer data, int offset, int command, int num, int immediate, Visitor visitor)
+    {
+        int format = command & 0x0F;
+        int components = unpackComponents[format];
+        if (components == 0) {
+            return -1;
+        }
+        int bits = unpackBits[format];
+        int numVectors = num == 0 ? 256 : num;
+        int numValues = numVectors * components;
+        int dataOffset = offset + 4;
+        int[] values = getIntScratch(numValues);
+        switch (bits) {
+            case 32:
+                data.getLEInts(dataOffset, values, 0, numValues);
+                offset = dataOffset + numValues * 4;
+                break;
+            case 16:
+                short[] shorts = getShortScratch(numValues);
+                data.getLEShorts(dataOffset, shorts, 0, numValues);
+                int mask16 = (immediate & 0x4000) != 0 ? 0xFFFF : -1;
+                for (int i = 0; i < numValues; ++i) {
+                    values[i] = shorts[i] & mask16;
+                }
+                offset = dataOffset + numValues * 2;
+                break;
+            case 8:
+                byte[] bytes = getByteScratch(numValues);
+                data.getBytes(dataOffset, bytes, 0, numValues);
+                int mask8 = (immediate & 0x4000) != 0 ? 0xFF : -1;
+                for (int i = 0; i < numValues; ++i) {
+                    values[i] = bytes[i] & mask8;
+                }
+                offset = dataOffset + numValues;
+                break;
+            default:
+                // V4-5, each 16 bit value expands to four 8 bit components.
+                shorts = getShortScratch(numVectors);
+                data.getLEShorts(dataOffset, shorts, 0, numVectors);
+                for (int i = 0; i < numVectors; ++i) {
+                    int value = shorts[i];
+                    values[i * 4] = (value & 0x1F) << 3;
+                    values[i * 4 + 1] = ((value >> 5) & 0x1F) << 3;
+                    values[i * 4 + 2] = ((value >> 10) & 0x1F) << 3;
+                    values[i * 4 + 3] = ((value >> 15) & 1) << 7;
+                }
+                offset = dataOffset + numVectors * 2;
+                break;
+        }
+        visitor.unpack(format >> 2, format & 3, immediate & 0x3FF, (immediate & 0x4000) != 0,
+                       (command & 0x10) != 0, values, numVectors);
+        // Commands are 32 bit aligned.
+        return (offset + 3) & ~3;
+    }
+
+    private static void setCommand(int command, int kind, int size)
+    {
+        commandKinds[command] = (byte) kind;
+        commandSizes[command] = (byte) size;
+    }
+
+    private int[] getIntScratch(int size)
+    {
+        if (intScratch.length < size) {
+            intScratch = new int[size];
+        }
+        return intScratch;
+    }
+
+    private short[] getShortScratch(int size)
+    {
+        if (shortScratch.length < size) {
+            shortScratch = new short[size];
+        }
+        return shortScratch;
+    }
+
+    private byte[] getByteScratch(int size)
+    {
+        if (byteScratch.length < size) {
+            byteScratch = new byte[size];
+        }
+        return byteScratch;
+    }
+
+    // Reused between UNPACK commands.
+    private int[] intScratch = new int[256];
+    private short[] shortScratch = new short[256];
+    private byte[] byteScratch = new byte[256];
+}
@@ -1,515 +1,749 @@
 package net.ijbrown.snowdroid;
 
-import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
-import com.badlogic.gdx.graphics.VertexAttribute;
-import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.Mesh;
 import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.Model;
-import com.badlogic.gdx.graphics.g3d.utils.MeshPartBuilder;
+import com.badlogic.gdx.graphics.g3d.model.Node;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
-import com.badlogic.gdx.math.Vector2;
-import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.IntArray;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Reads a .vif file, converts it to a libgdx model.
  */
 public class VifReader
 {
-    private static final int NOP_CMD = 0;
-    private static final int STCYCL_CMD = 1;
-    private static final int ITOP_CMD = 4;
-    private static final int STMOD_CMD = 5;
-    private static final int FLUSH_CMD = 0x11;
-    private static final int MSCAL_CMD = 0x14;
-    private static final int STMASK_CMD = 0x20;
-    private static final int DIRECT_CMD = 0x50;
+    /**
+     * The version of the meshes that readVif assembles. Bump it whenever a change to VifReader, MeshAssembler or
+     * MeshOptimizer changes them, so that models cooked by the old code are cooked again.
+     */
+    public static final int MESH_VERSION = 1;
+
+    // Runs with fewer triangles than this cost more indices as a stitched strip than as triangles.
+    private static final int MIN_STRIP_TRIANGLES = 3;
+
+    // A triangle whose face normal is this close to perpendicular to its vertex normals does not count
+    // towards the winding of its strip.
+    private static final float MIN_FACING_COS = 0.1f;
+
+    /**
+     * If set, the native triangle strips are kept where their winding can be worked out, otherwise every strip
+     * is split into triangles.
+     */
+    public void setTriangleStrips(boolean triangleStrips)
+    {
+        this.triangleStrips = triangleStrips;
+    }
+
+    /**
+     * If set, triangles are reordered for the GPU's vertex cache and the average cache miss ratio (ACMR) of each
+     * model is printed before and after.
+     */
+    public void setOptimizeVertexCache(boolean optimizeVertexCache)
+    {
+        this.optimizeVertexCache = optimizeVertexCache;
+    }
+
+    /**
+     * If set, the meshes are QuantizedMeshes, which keep the VIF's shorts and bytes rather than floats. The model
+     * is then drawn through a node that scales the positions, and with a copy of the material that has a
+     * TexCoordTransformAttribute, so it needs a shader that applies it, see IndexedShaderProvider.
+     */
+    public void setQuantizedVertices(boolean quantizedVertices)
+    {
+        this.quantizedVertices = quantizedVertices;
+    }
+
+    /**
+     * Sets where to keep cooked models. A model read with its location is loaded from its cooked copy if that
+     * is valid for the source and the settings here, and otherwise is cooked once it has been read.
+     */
+    public void setCookedModels(CookedModels cookedModels)
+    {
+        this.cookedModels = cookedModels;
+    }
+
+    /**
+     * The ACMR of the last model read, before it was optimized.
+     */
+    public float getACMRBefore()
+    {
+        return numTriangles == 0 ? 0.0f : (float) cacheMissesBefore / numTriangles;
+    }
+
+    /**
+     * The ACMR of the last model read. This is the same as getACMRBefore unless the vertex cache is optimized.
+     */
+    public float getACMRAfter()
+    {
+        return numTriangles == 0 ? 0.0f : (float) cacheMissesAfter / numTriangles;
+    }
 
     public Model readVif(ByteBuffer vifData, Material material, float uscale, float vscale)
     {
+        return readVif(vifData, null, material, uscale, vscale, 0.0f, 0.0f);
+    }
+
+    /**
+     * Reads a model whose texture has been placed in a larger texture, such as a TexAtlas page.
+     * Each texture coordinate becomes (uoffset + u * uscale, voffset + v * vscale), where u and v are in texels.
+     */
+    public Model readVif(ByteBuffer vifData, Material material, float uscale, float vscale, float uoffset,
+                         float voffset)
+    {
+        return readVif(vifData, null, material, uscale, vscale, uoffset, voffset);
+    }
+
+    /**
+     * Reads a model as above, going through the cooked models if they have been set.
+     *
+     * @param location the location of the .vif, or null if the model is not to be cooked.
+     */
+    public Model readVif(ByteBuffer vifData, AssetLocation location, Material material, float uscale, float vscale,
+                         float uoffset, float voffset)
+    {
+        boolean cooking = cookedModels != null && location != null;
+        long settings = getSettings(uscale, vscale, uoffset, voffset);
+        if (cooking) {
+            CookedModelData cooked = cookedModels.load(location, vifData, settings);
+            if (cooked != null) {
+                return readCooked(cooked, material, uscale, vscale, uoffset, voffset);
+            }
+        }
+
         int numMeshes = vifData.getUnsignedByte(0x12);
         int offset1 = vifData.getLEInt(0x24);
 
-        ModelBuilder modelBuilder = new ModelBuilder();
-        modelBuilder.begin();
+        cacheMissesBefore = 0;
+        cacheMissesAfter = 0;
+        numTriangles = 0;
+
+        // The meshes are independent, so they are parsed and assembled on the worker pool. Only creating the
+        // GL meshes has to happen here, on the GL thread.
+        final List<MeshTask> tasks = new ArrayList<MeshTask>(numMeshes);
         for (int meshNum = 0; meshNum < numMeshes; ++meshNum) {
             int offsetVerts = vifData.getLEInt(0x28 + meshNum * 4);
             int offsetEndVerts = vifData.getLEInt(0x2C + meshNum * 4);
-            List<Chunk> chunks = readChunks(vifData, offsetVerts, offsetEndVerts);
-            processChunks(modelBuilder, "mesh" + meshNum, material, chunks, uscale, vscale);
+            tasks.add(new MeshTask(this, vifData, offsetVerts, offsetEndVerts, uscale, vscale, uoffset, voffset));
+        }
+        WorkerPool.get().invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(tasks);
+            }
+        });
+
+        ModelBuilder modelBuilder = new ModelBuilder();
+        modelBuilder.begin();
+        material = beginModel(modelBuilder, material, uscale, vscale, uoffset, voffset);
+        List<MeshAssembler> assemblers = new ArrayList<MeshAssembler>(numMeshes);
+        for (int meshNum = 0; meshNum < numMeshes; ++meshNum) {
+            MeshTask task = tasks.get(meshNum);
+            MeshAssembler assembler = task.getRawResult();
+            addMesh(modelBuilder, "mesh" + meshNum, material, assembler.toMesh(), assembler.getNumStripIndices(),
+                    assembler.getNumTriangleIndices());
+            assemblers.add(assembler);
+            numTriangles += task.reader.numTriangles;
+            cacheMissesBefore += task.reader.cacheMissesBefore;
+            cacheMissesAfter += task.reader.cacheMissesAfter;
+        }
+        if (cooking) {
+            try {
+                cookedModels.cook(location, vifData, settings, assemblers, cacheMissesBefore, cacheMissesAfter);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (optimizeVertexCache) {
+            System.out.println("Vertex cache ACMR: " + getACMRBefore() + " -> " + getACMRAfter());
+        }
+        return modelBuilder.end();
+    }
+
+    // Builds the model from its cooked copy. Nothing is assembled, each mesh is uploaded from the mapped file.
+    private Model readCooked(CookedModelData cooked, Material material, float uscale, float vscale, float uoffset,
+                             float voffset)
+    {
+        numTriangles = cooked.getNumTriangles();
+        cacheMissesBefore = cooked.getCacheMissesBefore();
+        cacheMissesAfter = cooked.getCacheMissesAfter();
+
+        ModelBuilder modelBuilder = new ModelBuilder();
+        modelBuilder.begin();
+        material = beginModel(modelBuilder, material, uscale, vscale, uoffset, voffset);
+        for (int meshNum = 0; meshNum < cooked.getNumMeshes(); ++meshNum) {
+            addMesh(modelBuilder, "mesh" + meshNum, material, cooked.createMesh(meshNum),
+                    cooked.getNumStripIndices(meshNum), cooked.getNumTriangleIndices(meshNum));
+        }
+        if (optimizeVertexCache) {
+            System.out.println("Vertex cache ACMR: " + getACMRBefore() + " -> " + getACMRAfter());
         }
         return modelBuilder.end();
     }
 
-    private void processChunks(ModelBuilder modelBuilder, String id, Material material, List<Chunk> chunks,
-                               float uscale, float vscale)
+    // Identifies everything, other than the vif data, that changes the meshes read from it, so that a cooked
+    // model is only used with the settings it was cooked with.
+    private long getSettings(float uscale, float vscale, float uoffset, float voffset)
+    {
+        java.nio.ByteBuffer settings = java.nio.ByteBuffer.allocate(20);
+        settings.putInt((triangleStrips ? 1 : 0) | (optimizeVertexCache ? 2 : 0) | (quantizedVertices ? 4 : 0));
+        settings.putFloat(uscale).putFloat(vscale).putFloat(uoffset).putFloat(voffset);
+        settings.flip();
+        return DataUtil.hashBytes(new ByteBuffer(settings), 0, 20);
+    }
+
+    // Starts the model, returning the material that its meshes are drawn with.
+    private Material beginModel(ModelBuilder modelBuilder, Material material, float uscale, float vscale,
+                                float uoffset, float voffset)
     {
-        uscale /= 16.0f;
-        vscale /= 16.0f;
-
-        int numVertices = 0;
-        int numWeights = 0;
-        for (Chunk chunk : chunks) {
-            numVertices += chunk.vertices.size();
-            numWeights += chunk.vertexWeights.size();
+        if (quantizedVertices) {
+            material = new Material(material);
+            material.set(new TexCoordTransformAttribute(uscale / 16.0f, vscale / 16.0f, uoffset, voffset));
+            Node node = modelBuilder.node();
+            node.scale.set(QuantizedMesh.POSITION_SCALE, QuantizedMesh.POSITION_SCALE, QuantizedMesh.POSITION_SCALE);
         }
+        return material;
+    }
 
-        VertexAttributes vertexAttributes;
-        if (numWeights > 0) {
-            vertexAttributes = new VertexAttributes(VertexAttribute.Position(),
-                                                    VertexAttribute.Normal(),
-                                                    VertexAttribute.TexCoords(0),
-                                                    VertexAttribute.BoneWeight(0));
+    // Interprets a mesh's VIF commands and assembles its vertices and indices. This does not touch GL, so it can
+    // run on any thread.
+    MeshAssembler assembleMesh(ByteBuffer vifData, int offset, int endOffset, float uscale, float vscale,
+                               float uoffset, float voffset)
+    {
+        MeshVisitor visitor;
+        if (quantizedVertices) {
+            // The texture coordinates are scaled by the material and the positions by the node instead.
+            visitor = new MeshVisitor(1.0f, 1.0f, 1.0f, 1.0f, 0.0f, 0.0f);
         } else {
-            vertexAttributes = new VertexAttributes(VertexAttribute.Position(),
-                                                    VertexAttribute.Normal(),
-                                                    VertexAttribute.TexCoords(0));
+            visitor = new MeshVisitor(16.0f, 127.0f, uscale / 16.0f, vscale / 16.0f, uoffset, voffset);
         }
+        new VifInterpreter().read(vifData, offset, endOffset, visitor);
+        MeshAssembler assembler = visitor.finish();
+
+        assembler.weld();
+        numTriangles += assembler.getNumTriangles();
+        cacheMissesBefore += assembler.getCacheMisses();
+        if (optimizeVertexCache) {
+            assembler.optimizeVertexCache();
+            cacheMissesAfter += assembler.getCacheMisses();
+        } else {
+            cacheMissesAfter = cacheMissesBefore;
+        }
+        return assembler;
+    }
 
-        // tri-strip would be more efficient, but we would need to figure out the winding rule
-        // as it is not consistent in the vif files.
-        MeshPartBuilder meshBuilder = modelBuilder.part(id, GL20.GL_TRIANGLES, vertexAttributes, material);
-
-        // The vif format can specify multiple uvs per vertex, so we need to pre-process and
-        // duplicate where necessary.
-        List<Vector3> positions = new ArrayList<Vector3>(numVertices * 2);
-        List<Vector3> normals = new ArrayList<Vector3>(numVertices * 2);
-        List<Vector2> uvs = new ArrayList<Vector2>(numVertices * 2);
-        List<VertexWeight> vertexWeights = new ArrayList<VertexWeight>(numWeights);
-        final int vindexStart = meshBuilder.lastIndex() + 1;
-        int vstart = 0;
-        for (Chunk chunk : chunks) {
-            if ((chunk.gifTag0.prim & 0x07) != 4) {
-                throw new RuntimeException("Can only deal with tri-strips");
+    private static void addMesh(ModelBuilder modelBuilder, String id, Material material, Mesh mesh,
+                                int numStripIndices, int numTriangleIndices)
+    {
+        modelBuilder.manage(mesh);
+        if (numStripIndices > 0) {
+            modelBuilder.part(id + "_strip", mesh, GL20.GL_TRIANGLE_STRIP, 0, numStripIndices, material);
+        }
+        if (numTriangleIndices > 0 || numStripIndices == 0) {
+            modelBuilder.part(id, mesh, GL20.GL_TRIANGLES, numStripIndices, numTriangleIndices, material);
+        }
+    }
+
+    // The triangle ending at strip entry i is drawn unless its vertex has the ADC (skip) bit set.
+    private static boolean isDrawn(int[] vstrip, int[] corners, int i)
+    {
+        return (vstrip[i] & 0x8000) == 0 && corners[i - 2] >= 0 && corners[i - 1] >= 0 && corners[i] >= 0;
+    }
+
+    // Splits the vif strip into the runs of triangles between skipped ones. The GS does not cull, so the strips
+    // are not wound consistently; each run is checked against its vertex normals and, if every triangle in it
+    // agrees, added as a strip facing the right way. Short runs and runs that disagree become triangles.
+    private static void addStrips(MeshAssembler assembler, Chunk chunk, int[] vstrip, int[] corners)
+    {
+        int i = 2;
+        while (i < vstrip.length) {
+            if (!isDrawn(vstrip, corners, i)) {
+                ++i;
+                continue;
+            }
+            int first = i - 2;
+            while (i < vstrip.length && isDrawn(vstrip, corners, i)) {
+                ++i;
             }
-            int numChunkVertices = chunk.vertices.size();
-            for (int vertexNum = 0; vertexNum < numChunkVertices; ++vertexNum) {
-                Vertex v = chunk.vertices.get(vertexNum);
-                positions.add(new Vector3(v.x / 16.0f, v.y / 16.0f, v.z / 16.0f));
-                ByteVector n = chunk.normals.get(vertexNum);
-                normals.add(new Vector3(n.x / 127.0f, n.y / 127.0f, n.z / 127.0f));
-                uvs.add(null);
+            int numTriangles = i - 2 - first;
+
+            int numFront = 0;
+            int numBack = 0;
+            for (int tri = 0; tri < numTriangles; ++tri) {
+                int facing = getFacing(chunk, vstrip, first + tri, (tri & 1) == 1);
+                if (facing > 0) {
+                    ++numFront;
+                } else if (facing < 0) {
+                    ++numBack;
+                }
             }
-            for (final VertexWeight vw : chunk.vertexWeights) {
-                if (vw.startVertex <= (numChunkVertices - 1)) {
-                    VertexWeight vwAdjusted = new VertexWeight(vw);
-                    vwAdjusted.startVertex += vstart;
-                    if (vwAdjusted.endVertex >= numChunkVertices) {
-                        vwAdjusted.endVertex = numChunkVertices - 1;
+            if (numTriangles >= MIN_STRIP_TRIANGLES && (numFront == 0 || numBack == 0)) {
+                assembler.strip(corners, first, numTriangles + 2, numBack > 0);
+            } else {
+                for (int tri = 0; tri < numTriangles; ++tri) {
+                    int idx = first + tri;
+                    boolean flip = (tri & 1) == 1;
+                    if (getFacing(chunk, vstrip, idx, flip) < 0) {
+                        flip = !flip;
+                    }
+                    if (flip) {
+                        assembler.triangle(corners[idx + 1], corners[idx], corners[idx + 2]);
+                    } else {
+                        assembler.triangle(corners[idx], corners[idx + 1], corners[idx + 2]);
                     }
-                    vwAdjusted.endVertex += vstart;
-                    vertexWeights.add(vwAdjusted);
                 }
             }
+        }
+    }
+
+    // Compares the winding of the triangle starting at strip entry idx, taken counter-clockwise, with its vertex
+    // normals. Returns 1 if it faces the same way as the normals, -1 if it faces away from them and 0 if it is
+    // too close to edge on to tell.
+    private static int getFacing(Chunk chunk, int[] vstrip, int idx, boolean odd)
+    {
+        int[] positions = chunk.vertices.items;
+        int a = (vstrip[odd ? idx + 1 : idx] & 0xFF) * 3;
+        int b = (vstrip[odd ? idx : idx + 1] & 0xFF) * 3;
+        int c = (vstrip[idx + 2] & 0xFF) * 3;
+        float e1x = positions[b] - positions[a];
+        float e1y = positions[b + 1] - positions[a + 1];
+        float e1z = positions[b + 2] - positions[a + 2];
+        float e2x = positions[c] - positions[a];
+        float e2y = positions[c + 1] - positions[a + 1];
+        float e2z = positions[c + 2] - positions[a + 2];
+        float fx = e1y * e2z - e1z * e2y;
+        float fy = e1z * e2x - e1x * e2z;
+        float fz = e1x * e2y - e1y * e2x;
+
+        int[] normals = chunk.normals.items;
+        float nx = 0.0f;
+        float ny = 0.0f;
+        float nz = 0.0f;
+        for (int i = idx; i <= idx + 2; ++i) {
+            int n = (vstrip[i] & 0xFF) * 3;
+            nx += normals[n];
+            ny += normals[n + 1];
+            nz += normals[n + 2];
+        }
+
+        float dot = fx * nx + fy * ny + fz * nz;
+        float lengths = (float) Math.sqrt((fx * fx + fy * fy + fz * fz) * (nx * nx + ny * ny + nz * nz));
+        if (Math.abs(dot) <= MIN_FACING_COS * lengths) {
+            return 0;
+        }
+        return dot > 0 ? 1 : -1;
+    }
+
+    // Reads and assembles one mesh. Each task has a reader of its own, as a reader is not thread safe.
+    private static class MeshTask extends RecursiveTask<MeshAssembler>
+    {
+        private static final long serialVersionUID = 1L;
+
+        MeshTask(VifReader settings, ByteBuffer vifData, int offsetVerts, int offsetEndVerts, float uscale,
+                 float vscale, float uoffset, float voffset)
+        {
+            reader = new VifReader();
+            reader.triangleStrips = settings.triangleStrips;
+            reader.optimizeVertexCache = settings.optimizeVertexCache;
+            reader.quantizedVertices = settings.quantizedVertices;
+            this.vifData = vifData;
+            this.offsetVerts = offsetVerts;
+            this.offsetEndVerts = offsetEndVerts;
+            this.uscale = uscale;
+            this.vscale = vscale;
+            this.uoffset = uoffset;
+            this.voffset = voffset;
+        }
+
+        @Override
+        protected MeshAssembler compute()
+        {
+            return reader.assembleMesh(vifData, offsetVerts, offsetEndVerts, uscale, vscale, uoffset, voffset);
+        }
+
+        final VifReader reader;
+        private final ByteBuffer vifData;
+        private final int offsetVerts;
+        private final int offsetEndVerts;
+        private final float uscale;
+        private final float vscale;
+        private final float uoffset;
+        private final float voffset;
+    }
+
+    /**
+     * Builds a mesh from the VIF stream as it is interpreted.
+     * The data unpacked between two MSCALs is for the microcode started by the second. The exception is the
+     * uvs, which are unpacked after the MSCAL they belong to as the MSCAL is delayed. So each chunk is complete,
+     * and is added to the mesh, at the MSCAL after its own.
+     */
+    private class MeshVisitor implements VifInterpreter.Visitor
+    {
+        // Positions and normals are divided by their divisors, texture coordinates are scaled and offset.
+        MeshVisitor(float positionDivisor, float normalDivisor, float uscale, float vscale, float uoffset,
+                    float voffset)
+        {
+            this.positionDivisor = positionDivisor;
+            this.normalDivisor = normalDivisor;
+            this.uscale = uscale;
+            this.vscale = vscale;
+            this.uoffset = uoffset;
+            this.voffset = voffset;
+        }
+
+        @Override
+        public void unpack(int vn, int vl, int address, boolean usn, boolean masked, int[] values, int numVectors)
+        {
+            int numValues = numVectors * (vn + 1);
+            if (vn == 1 && vl == 1) {
+                // v2-16
+                if (previousChunk != null) {
+                    appendSigned(previousChunk.uvs, values, numValues, 16);
+                }
+            } else if (vn == 2 && vl == 1) {
+                // v3-16
+                // each vertex is 128 bits, so num is the number of vertices
+                if (!usn) {
+                    appendSigned(currentChunk.vertices, values, numValues, 16);
+                } else {
+                    appendUnsigned(currentChunk.vlocs, values, numValues, 16);
+                }
+            } else if (vn == 2 && vl == 2) {
+                // v3-8
+                appendSigned(currentChunk.normals, values, numValues, 8);
+            } else if (vn == 3 && vl == 0) {
+                // v4-32
+                if (numVectors == 1 || numVectors == 2) {
+                    currentChunk.gifTag0.parse(values[0], values[1], values[2], values[3]);
+                    currentChunk.hasGifTag = true;
+                }
+            } else if (vn == 3 && vl == 1) {
+                // v4-16
+                if (usn) {
+                    currentChunk.extraVlocs.clear();
+                    appendUnsigned(currentChunk.extraVlocs, values, numValues, 16);
+                }
+            } else if (vn == 3 && vl == 2) {
+                // v4-8
+                readVertexWeights(values, numVectors);
+            }
+        }
+
+        @Override
+        public void direct(ByteBuffer data, int offset, int numQuadwords)
+        {
+        }
+
+        @Override
+        public void mscal(int address)
+        {
+            if (address != 66 && address != 68 && address != 70) {
+                System.out.println("**** Microcode " + address + " not supported");
+            }
+            if (previousChunk != null) {
+                addChunk(previousChunk);
+                previousChunk.clear();
+            } else {
+                previousChunk = new Chunk();
+            }
+            Chunk chunk = previousChunk;
+            previousChunk = currentChunk;
+            currentChunk = chunk;
+        }
+
+        @Override
+        public void command(int command, int immediate, int num)
+        {
+        }
+
+        /**
+         * Adds the last chunk and returns the assembled mesh.
+         */
+        MeshAssembler finish()
+        {
+            if (previousChunk != null) {
+                addChunk(previousChunk);
+            }
+            if (weightIds.size() > 0) {
+                setBoneWeights();
+            }
+            assembler.setQuantized(quantizedVertices);
+            return assembler;
+        }
+
+        // Each entry is 4 bytes: a bone, its weight, and either 0xFF and the number of vertices that use just
+        // that bone, or a second bone and weight for one vertex. If those two weights do not add up to 0xFF the
+        // next entry holds a third and fourth bone.
+        private void readVertexWeights(int[] values, int numEntries)
+        {
+            int curVertex = 0;
+            for (int i = 0; i < numEntries; ++i) {
+                int idx = i * 4;
+                int startVertex = curVertex;
+                int bone1 = (values[idx] & 0xFF) / 4;
+                int boneWeight1 = values[idx + 1] & 0xFF;
+                int bone2 = values[idx + 2] & 0xFF;
+                int boneWeight2 = 0;
+                int bone3 = 0;
+                int boneWeight3 = 0;
+                int bone4 = 0;
+                int boneWeight4 = 0;
+                if (bone2 == 0xFF) {
+                    // Single bone
+                    curVertex += values[idx + 3] & 0xFF;
+                } else {
+                    bone2 /= 4;
+                    boneWeight2 = values[idx + 3] & 0xFF;
+                    ++curVertex;
+
+                    bone3 = 0xFF;
+                    bone4 = 0xFF;
+                    if (boneWeight1 + boneWeight2 < 0xFF && i + 1 < numEntries) {
+                        ++i;
+                        bone3 = (values[idx + 4] & 0xFF) / 4;
+                        boneWeight3 = values[idx + 5] & 0xFF;
+                        if ((values[idx + 6] & 0xFF) != 0xFF) {
+                            bone4 = (values[idx + 6] & 0xFF) / 4;
+                            boneWeight4 = values[idx + 7] & 0xFF;
+                        }
+                    }
+                }
+                // Vertices with the same bones and weights share an id, whichever chunk they are in.
+                long key = 0;
+                int[] weightValues = {bone1, bone2, bone3, bone4, boneWeight1, boneWeight2, boneWeight3, boneWeight4};
+                for (int value : weightValues) {
+                    key = (key << 8) | (value & 0xFF);
+                }
+                Integer weightId = weightIds.get(key);
+                if (weightId == null) {
+                    weightId = weightIds.size();
+                    weightIds.put(key, weightId);
+                    weightTable.addAll(weightValues);
+                }
+                currentChunk.vertexWeights.add(startVertex);
+                currentChunk.vertexWeights.add(curVertex - 1);
+                currentChunk.vertexWeights.add(weightId);
+            }
+        }
+
+        // Gives the assembler the bones and weights of each weight id. A bone of 0xFF is unused. The weights are
+        // normalized, and the mesh has as many bone weights per vertex as the vertex with the most bones needs.
+        private void setBoneWeights()
+        {
+            int numIds = weightIds.size();
+            int numBoneWeights = 1;
+            for (int id = 0; id < numIds; ++id) {
+                numBoneWeights = Math.max(numBoneWeights, getNumBones(id));
+            }
+            float[] boneWeights = new float[numIds * numBoneWeights * 2];
+            for (int id = 0; id < numIds; ++id) {
+                int numBones = getNumBones(id);
+                int sum = 0;
+                for (int bone = 0; bone < numBones; ++bone) {
+                    sum += weightTable.get(id * 8 + 4 + bone);
+                }
+                for (int bone = 0; bone < numBones; ++bone) {
+                    int offset = (id * numBoneWeights + bone) * 2;
+                    boneWeights[offset] = weightTable.get(id * 8 + bone);
+                    if (sum == 0) {
+                        boneWeights[offset + 1] = bone == 0 ? 1.0f : 0.0f;
+                    } else {
+                        boneWeights[offset + 1] = (float) weightTable.get(id * 8 + 4 + bone) / sum;
+                    }
+                }
+            }
+            assembler.setBoneWeights(numBoneWeights, boneWeights);
+        }
+
+        private int getNumBones(int weightId)
+        {
+            int numBones = 1;
+            while (numBones < 4 && weightTable.get(weightId * 8 + numBones) != 0xFF) {
+                ++numBones;
+            }
+            return numBones;
+        }
+
+        private void addChunk(Chunk chunk)
+        {
+            if (!chunk.hasGifTag) {
+                return;
+            }
+            if ((chunk.gifTag0.prim & 0x07) != 4) {
+                throw new RuntimeException("Can only deal with tri-strips");
+            }
+            final int numChunkVertices = Math.min(chunk.vertices.size, chunk.normals.size) / 3;
+            int[] vertexWeightIds = getVertexWeightIds(numChunkVertices);
+            Arrays.fill(vertexWeightIds, 0, numChunkVertices, MeshAssembler.NO_WEIGHT);
+            for (int i = 0; i < chunk.vertexWeights.size; i += 3) {
+                int startVertex = chunk.vertexWeights.get(i);
+                int endVertex = Math.min(chunk.vertexWeights.get(i + 1), numChunkVertices - 1);
+                if (startVertex <= endVertex) {
+                    Arrays.fill(vertexWeightIds, startVertex, endVertex + 1, chunk.vertexWeights.get(i + 2));
+                }
+            }
+
             final int vstripLen = chunk.gifTag0.nloop;
             int[] vstrip = new int[vstripLen];
             final int regsPerVertex = chunk.gifTag0.nreg;
-            final int numVlocs = chunk.vlocs.size();
+            final int[] vlocs = chunk.vlocs.items;
+            final int numVlocs = chunk.vlocs.size / 3;
             for (int vlocIndx = 2; vlocIndx < numVlocs; ++vlocIndx) {
                 int v = vlocIndx - 2;
-                VLoc vloc = chunk.vlocs.get(vlocIndx);
-                int stripIdx2 = (vloc.v2 & 0x1FF) / regsPerVertex;
-                int stripIdx3 = (vloc.v3 & 0x1FF) / regsPerVertex;
+                int v1 = vlocs[vlocIndx * 3];
+                int v2 = vlocs[vlocIndx * 3 + 1];
+                int v3 = vlocs[vlocIndx * 3 + 2];
+                int stripIdx2 = (v2 & 0x1FF) / regsPerVertex;
+                int stripIdx3 = (v3 & 0x1FF) / regsPerVertex;
                 if (stripIdx3 < vstripLen && stripIdx2 < vstripLen) {
                     vstrip[stripIdx3] = vstrip[stripIdx2] & 0x1FF;
 
-                    boolean skip2 = (vloc.v3 & 0x8000) == 0x8000;
+                    boolean skip2 = (v3 & 0x8000) == 0x8000;
                     if (skip2) {
                         vstrip[stripIdx3] |= 0x8000;
                     }
                 }
-                int stripIdx = (vloc.v1 & 0x1FF) / regsPerVertex;
-                boolean skip = (vloc.v1 & 0x8000) == 0x8000;
+                int stripIdx = (v1 & 0x1FF) / regsPerVertex;
+                boolean skip = (v1 & 0x8000) == 0x8000;
 
                 if (v < numChunkVertices && stripIdx < vstripLen) {
                     vstrip[stripIdx] = skip ? (v | 0x8000) : v;
                 }
             }
-            final int numExtraVlocs = chunk.extraVlocs == null ? 0 : chunk.extraVlocs[0];
+            final int[] extraVlocs = chunk.extraVlocs.items;
+            final int numExtraVlocs = chunk.extraVlocs.size == 0 ? 0 : extraVlocs[0];
             for (int extraVloc = 0; extraVloc < numExtraVlocs; ++extraVloc) {
                 int idx = extraVloc * 4 + 4;
-                int stripIndxSrc = (chunk.extraVlocs[idx] & 0x1FF) / regsPerVertex;
-                int stripIndxDest = (chunk.extraVlocs[idx + 1] & 0x1FF) / regsPerVertex;
-                vstrip[stripIndxDest] = (chunk.extraVlocs[idx + 1] & 0x8000) | (vstrip[stripIndxSrc] & 0x1FF);
+                int stripIndxSrc = (extraVlocs[idx] & 0x1FF) / regsPerVertex;
+                int stripIndxDest = (extraVlocs[idx + 1] & 0x1FF) / regsPerVertex;
+                vstrip[stripIndxDest] = (extraVlocs[idx + 1] & 0x8000) | (vstrip[stripIndxSrc] & 0x1FF);
 
-                stripIndxSrc = (chunk.extraVlocs[idx + 2] & 0x1FF) / regsPerVertex;
-                stripIndxDest = (chunk.extraVlocs[idx + 3] & 0x1FF) / regsPerVertex;
-                vstrip[stripIndxDest] = (chunk.extraVlocs[idx + 3] & 0x8000) | (vstrip[stripIndxSrc] & 0x1FF);
+                stripIndxSrc = (extraVlocs[idx + 2] & 0x1FF) / regsPerVertex;
+                stripIndxDest = (extraVlocs[idx + 3] & 0x1FF) / regsPerVertex;
+                vstrip[stripIndxDest] = (extraVlocs[idx + 3] & 0x8000) | (vstrip[stripIndxSrc] & 0x1FF);
             }
 
-            for (int i = 2; i < vstripLen; ++i) {
-                int vidx1 = vstart + (vstrip[i - 2] & 0xFF);
-                int vidx2 = vstart + (vstrip[i - 1] & 0xFF);
-                int vidx3 = vstart + (vstrip[i] & 0xFF);
-
-                int uv1 = i - 2;
-                int uv2 = i - 1;
-                int uv3 = i;
-
-                if ((vstrip[i] & 0x8000) == 0) {
-                    Vector2 vuv1 = new Vector2(chunk.uvs.get(uv1).u * uscale, chunk.uvs.get(uv1).v * vscale);
-                    Vector2 vuv2 = new Vector2(chunk.uvs.get(uv2).u * uscale, chunk.uvs.get(uv2).v * vscale);
-                    Vector2 vuv3 = new Vector2(chunk.uvs.get(uv3).u * uscale, chunk.uvs.get(uv3).v * vscale);
-
-                    if (uvs.get(vidx1) != null && !uvs.get(vidx1).equals(vuv1)) {
-                        // There is more than one uv assignment to this vertex, so we need to duplicate it
-                        int originalVIdx = vidx1;
-                        vidx1 = positions.size();
-                        positions.add(positions.get(originalVIdx));
-                        normals.add(normals.get(originalVIdx));
-                        uvs.add(null);
-                        ++numChunkVertices;
-                        VertexWeight weight = FindVertexWeight(vertexWeights, originalVIdx - vstart);
-                        if (weight.boneWeight1 > 0) {
-                            VertexWeight vw = new VertexWeight(weight);
-                            vw.startVertex = vidx1;
-                            vw.endVertex = vidx1;
-                            vertexWeights.add(vw);
-                        }
-                    }
-                    if (uvs.get(vidx2) != null && !uvs.get(vidx2).equals(vuv2)) {
-                        // There is more than one uv assignment to this vertex, so we need to duplicate it
-                        int originalVIdx = vidx2;
-                        vidx2 = positions.size();
-                        positions.add(positions.get(originalVIdx));
-                        normals.add(normals.get(originalVIdx));
-                        uvs.add(null);
-                        ++numChunkVertices;
-                        VertexWeight weight = FindVertexWeight(vertexWeights, originalVIdx - vstart);
-                        if (weight.boneWeight1 > 0) {
-                            VertexWeight vw = new VertexWeight(weight);
-                            vw.startVertex = vidx2;
-                            vw.endVertex = vidx2;
-                            vertexWeights.add(vw);
-                        }
-                    }
-                    if (uvs.get(vidx3) != null && !uvs.get(vidx3).equals(vuv3)) {
-                        // There is more than one uv assignment to this vertex, so we need to duplicate it
-                        int originalVIdx = vidx3;
-                        vidx3 = positions.size();
-                        positions.add(positions.get(originalVIdx));
-                        normals.add(normals.get(originalVIdx));
-                        uvs.add(null);
-                        ++numChunkVertices;
-                        VertexWeight weight = FindVertexWeight(vertexWeights, originalVIdx - vstart);
-                        if (weight.boneWeight1 > 0) {
-                            VertexWeight vw = new VertexWeight(weight);
-                            vw.startVertex = vidx3;
-                            vw.endVertex = vidx3;
-                            vertexWeights.add(vw);
-                        }
-                    }
-
-                    uvs.set(vidx1, vuv1);
-                    uvs.set(vidx2, vuv2);
-                    uvs.set(vidx3, vuv3);
-
-                    meshBuilder.triangle((short) (vidx1 + vindexStart), (short) (vidx2 + vindexStart),
-                                         (short) (vidx3 + vindexStart));
+            // The vif format can specify multiple uvs per vertex, so each strip entry is added as a vertex of
+            // its own and the assembler welds together the ones that turn out to be identical.
+            // Each strip entry is a vertex with its own uv, or -1 if the entry can not be drawn.
+            final int[] positions = chunk.vertices.items;
+            final int[] normals = chunk.normals.items;
+            final int[] uvs = chunk.uvs.items;
+            final int numUVs = chunk.uvs.size / 2;
+            int[] corners = new int[vstripLen];
+            for (int i = 0; i < vstripLen; ++i) {
+                int vertexNum = vstrip[i] & 0xFF;
+                if (vertexNum < numChunkVertices && i < numUVs) {
+                    int p = vertexNum * 3;
+                    corners[i] = assembler.addVertex(positions[p] / positionDivisor,
+                                                     positions[p + 1] / positionDivisor,
+                                                     positions[p + 2] / positionDivisor, normals[p] / normalDivisor,
+                                                     normals[p + 1] / normalDivisor, normals[p + 2] / normalDivisor,
+                                                     uoffset + uvs[i * 2] * uscale, voffset + uvs[i * 2 + 1] * vscale,
+                                                     vertexWeightIds[vertexNum]);
+                } else {
+                    corners[i] = -1;
                 }
             }
-            vstart += numChunkVertices;
-        }
-
-        Color colour = Color.WHITE;
-        for (int i = 0; i < positions.size(); ++i) {
-            meshBuilder.vertex(positions.get(i), normals.get(i), colour, uvs.get(i));
-        }
-    }
-
-    private VertexWeight FindVertexWeight(List<VertexWeight> weights, int vertexNum)
-    {
-        for (VertexWeight weight : weights) {
-            if (vertexNum >= weight.startVertex && vertexNum <= weight.endVertex) {
-                return weight;
+            if (triangleStrips) {
+                addStrips(assembler, chunk, vstrip, corners);
+            } else {
+                for (int i = 2; i < vstripLen; ++i) {
+                    if (isDrawn(vstrip, corners, i)) {
+                        assembler.triangle(corners[i - 2], corners[i - 1], corners[i]);
+                    }
+                }
             }
         }
-        if (!weights.isEmpty()) {
-            //       Logger::getLogger()->log("Failed to find vertex weight\n");
-        }
-        return new VertexWeight();
-    }
 
-    private List<Chunk> readChunks(ByteBuffer data, int offset, int endOffset)
-    {
-        List<Chunk> chunks = new ArrayList<Chunk>();
-        Chunk currentChunk = new Chunk();
-        Chunk previousChunk = null;
-        while (offset < endOffset) {
-            int vifCommand = data.getUnsignedByte(offset + 3) & 0x7f;
-            int numCommand = data.getUnsignedByte(offset + 2);
-            int immCommand = data.getLEShort(offset);
-            switch (vifCommand) {
-                case NOP_CMD:
-                case STCYCL_CMD:
-                case ITOP_CMD:
-                case STMOD_CMD:
-                case FLUSH_CMD:
-                    offset += 4;
-                    break;
-                case MSCAL_CMD:
-                    if (immCommand != 66 && immCommand != 68 && immCommand != 70) {
-                        System.out.println("**** Microcode " + immCommand + " not supported");
-                    }
-                    currentChunk.mscalID = immCommand;
-                    chunks.add(currentChunk);
-                    previousChunk = currentChunk;
-                    currentChunk = new Chunk();
-
-                    offset += 4;
-                    break;
-                case STMASK_CMD:
-                    offset += 8;
-                    break;
-
-                case DIRECT_CMD:
-                    for (int i = 0; i < immCommand; i++) {
-                        GIFTag gifTag = new GIFTag();
-                        gifTag.parse(data, offset + 4 + i * 16);
-                        currentChunk.directGifTags.add(gifTag);
-                    }
-
-                    offset += 4;
-                    offset += immCommand * 16;
-                    break;
-
-                default:
-                    if ((vifCommand & 0x60) == 0x60) {
-                        // unpack command
-                        boolean mask = ((vifCommand & 0x10) == 0x10);
-                        int vn = (vifCommand >> 2) & 3;
-                        int vl = vifCommand & 3;
-                        int addr = immCommand & 0x1ff;
-                        boolean flag = (immCommand & 0x8000) == 0x8000;
-                        boolean usn = (immCommand & 0x4000) == 0x4000;
-
-                        offset += 4;
-                        if (vn == 1 && vl == 1) {
-                            // v2-16
-                            // The UVs come after the MSCAL instruction because the MSCAL is delayed
-                            if (previousChunk != null) {
-                                for (int uvnum = 0; uvnum < numCommand; ++uvnum) {
-                                    short u = data.getLEShort(offset);
-                                    short v = data.getLEShort(offset + 2);
-                                    previousChunk.uvs.add(new UV(u, v));
-                                    offset += 4;
-                                }
-                            } else {
-                                int numBytes = numCommand * 4;
-                                offset += numBytes;
-                            }
-                        } else if (vn == 2 && vl == 1) {
-                            // v3-16
-                            // each vertex is 128 bits, so num is the number of vertices
-                            for (int vnum = 0; vnum < numCommand; ++vnum) {
-                                if (!usn) {
-                                    short x = data.getLEShort(offset);
-                                    short y = data.getLEShort(offset + 2);
-                                    short z = data.getLEShort(offset + 4);
-                                    offset += 6;
-
-                                    Vertex vertex = new Vertex();
-                                    vertex.x = x;
-                                    vertex.y = y;
-                                    vertex.z = z;
-                                    currentChunk.vertices.add(vertex);
-                                } else {
-                                    int x = data.getLEUShort(offset);
-                                    int y = data.getLEUShort(offset + 2);
-                                    int z = data.getLEUShort(offset + 4);
-                                    offset += 6;
-
-                                    VLoc vloc = new VLoc();
-                                    vloc.v1 = x;
-                                    vloc.v2 = y;
-                                    vloc.v3 = z;
-                                    currentChunk.vlocs.add(vloc);
-                                }
-                            }
-                            offset = (offset + 3) & ~3;
-                        } else if (vn == 2 && vl == 2) {
-                            // v3-8
-                            int idx = offset;
-                            for (int vnum = 0; vnum < numCommand; ++vnum) {
-                                ByteVector vec = new ByteVector();
-                                vec.x = data.getByte(idx++);
-                                vec.y = data.getByte(idx++);
-                                vec.z = data.getByte(idx++);
-                                currentChunk.normals.add(vec);
-                            }
-                            int numBytes = ((numCommand * 3) + 3) & ~3;
-                            offset += numBytes;
-                        } else if (vn == 3 && vl == 0) {
-                            // v4-32
-                            if (1 == numCommand) {
-                                currentChunk.gifTag0 = new GIFTag();
-                                currentChunk.gifTag0.parse(data, offset);
-                            } else if (2 == numCommand) {
-                                currentChunk.gifTag0 = new GIFTag();
-                                currentChunk.gifTag0.parse(data, offset);
-                                currentChunk.gifTag1 = new GIFTag();
-                                currentChunk.gifTag1.parse(data, offset + 16);
-                            }
-                            int numBytes = numCommand * 16;
-                            offset += numBytes;
-                        } else if (vn == 3 && vl == 1) {
-                            // v4-16
-                            int numShorts = numCommand * 4;
-                            if (usn) {
-                                currentChunk.extraVlocs = new int[numShorts];
-                                for (int i = 0; i < numCommand; ++i) {
-                                    currentChunk.extraVlocs[i * 4] = data.getLEUShort(offset + i * 8);
-                                    currentChunk.extraVlocs[i * 4 + 1] = data.getLEUShort(offset + i * 8 + 2);
-                                    currentChunk.extraVlocs[i * 4 + 2] = data.getLEUShort(offset + i * 8 + 4);
-                                    currentChunk.extraVlocs[i * 4 + 3] = data.getLEUShort(offset + i * 8 + 6);
-                                }
-                            } else {
-//                                Logger::getLogger()->log("Unsupported tag\n");
-                            }
-                            offset += numShorts * 2;
-
-                        } else if (vn == 3 && vl == 2) {
-                            // v4-8
-                            int numBytes = numCommand * 4;
-                            int curVertex = 0;
-                            for (int i = 0; i < numCommand; ++i) {
-                                VertexWeight vw = new VertexWeight();
-                                vw.startVertex = curVertex;
-                                vw.bone1 = data.getUnsignedByte(offset++) / 4;
-                                vw.boneWeight1 = data.getUnsignedByte(offset++);
-                                vw.bone2 = data.getUnsignedByte(offset++);
-                                if (vw.bone2 == 0xFF) {
-                                    // Single bone
-                                    vw.boneWeight2 = 0;
-                                    int count = data.getUnsignedByte(offset++);
-                                    curVertex += count;
-                                } else {
-                                    vw.bone2 /= 4;
-                                    vw.boneWeight2 = data.getUnsignedByte(offset++);
-                                    ++curVertex;
-
-                                    if (vw.boneWeight1 + vw.boneWeight2 < 0xFF) {
-                                        ++i;
-                                        vw.bone3 = data.getUnsignedByte(offset++) / 4;
-                                        vw.boneWeight3 = data.getUnsignedByte(offset++);
-                                        vw.bone4 = data.getUnsignedByte(offset++);
-                                        int bw4 = data.getUnsignedByte(offset++);
-                                        if (vw.bone4 != 0xFF) {
-                                            vw.bone4 /= 4;
-                                            vw.boneWeight4 = bw4;
-                                        }
-                                    } else {
-                                        vw.bone3 = 0xFF;
-                                        vw.boneWeight3 = 0;
-                                        vw.bone4 = 0xFF;
-                                        vw.boneWeight4 = 0;
-                                    }
-
-                                }
-                                vw.endVertex = curVertex - 1;
-                                currentChunk.vertexWeights.add(vw);
-                            }
-                        } else {
-                            System.out.println("Unknown vnvl combination: vn=" + vn + ", vl=" + vl);
-                            offset = endOffset;
-                        }
-                    } else {
-                        System.out.println("Unknown command: " + vifCommand);
-                        offset = endOffset;
-                    }
-                    break;
+        private int[] getVertexWeightIds(int size)
+        {
+            if (vertexWeightIds.length < size) {
+                vertexWeightIds = new int[size];
             }
+            return vertexWeightIds;
         }
-        return chunks;
-    }
-
-    private class Vertex
-    {
-        public short x;
-        public short y;
-        public short z;
-    }
 
-    private class ByteVector
-    {
-        public byte x;
-        public byte y;
-        public byte z;
+        private final float positionDivisor;
+        private final float normalDivisor;
+        private final float uscale;
+        private final float vscale;
+        private final float uoffset;
+        private final float voffset;
+
+        private final MeshAssembler assembler = new MeshAssembler(1024, 1024);
+        private final Map<Long, Integer> weightIds = new HashMap<Long, Integer>();
+        // The bones and then the weights of each weight id, eight values per id.
+        private final IntArray weightTable = new IntArray();
+        private Chunk currentChunk = new Chunk();
+        private Chunk previousChunk;
+        private int[] vertexWeightIds = new int[256];
     }
 
-    private class VLoc
+    private static void appendSigned(IntArray dest, int[] values, int count, int bits)
     {
-        public int v1;
-        public int v2;
-        public int v3;
-
-        @Override
-        public String toString()
-        {
-            return HexUtil.formatHexUShort(v1) + ", " + HexUtil.formatHexUShort(v2) + ", " + HexUtil.formatHexUShort(
-                    v3);
+        int shift = 32 - bits;
+        dest.ensureCapacity(count);
+        for (int i = 0; i < count; ++i) {
+            dest.add((values[i] << shift) >> shift);
         }
     }
 
-    private class UV
+    private static void appendUnsigned(IntArray dest, int[] values, int count, int bits)
     {
-        public short u;
-        public short v;
-
-        public UV(short u, short v)
-        {
-            this.u = u;
-            this.v = v;
+        int mask = (1 << bits) - 1;
+        dest.ensureCapacity(count);
+        for (int i = 0; i < count; ++i) {
+            dest.add(values[i] & mask);
         }
     }
 
-    private class VertexWeight
+    /**
+     * The data for one run of the microcode. The unpacked values are held in flat arrays, three per vertex,
+     * normal and vloc, two per uv. The chunks are re-used once they have been added to the mesh.
+     */
+    private static class Chunk
     {
-        public int startVertex;
-        public int endVertex;
-        public int bone1;
-        public int bone2;
-        public int bone3;
-        public int bone4;
-        public int boneWeight1;
-        public int boneWeight2;
-        public int boneWeight3;
-        public int boneWeight4;
-
-        public VertexWeight()
+        void clear()
         {
+            hasGifTag = false;
+            vertices.clear();
+            normals.clear();
+            vlocs.clear();
+            uvs.clear();
+            extraVlocs.clear();
+            vertexWeights.clear();
         }
 
-        public VertexWeight(final VertexWeight vw)
-        {
-            startVertex = vw.startVertex;
-            endVertex = vw.endVertex;
-            bone1 = vw.bone1;
-            bone2 = vw.bone2;
-            bone3 = vw.bone3;
-            bone4 = vw.bone4;
-            boneWeight1 = vw.boneWeight1;
-            boneWeight2 = vw.boneWeight2;
-            boneWeight3 = vw.boneWeight3;
-            boneWeight4 = vw.boneWeight4;
-        }
+        final GIFTag gifTag0 = new GIFTag();
+        boolean hasGifTag;
+        final IntArray vertices = new IntArray();
+        final IntArray normals = new IntArray();
+        final IntArray vlocs = new IntArray();
+        final IntArray uvs = new IntArray();
+        final IntArray extraVlocs = new IntArray();
+        // Start vertex, end vertex and weight id of each run of vertices with the same weights.
+        final IntArray vertexWeights = new IntArray();
     }
 
-    private class Chunk
-    {
-        public int mscalID = 0;
-        public GIFTag gifTag0 = null;
-        public GIFTag gifTag1 = null;
-        public List<Vertex> vertices = new ArrayList<Vertex>();
-        public List<ByteVector> normals = new ArrayList<ByteVector>();
-        public List<VLoc> vlocs = new ArrayList<VLoc>();
-        public List<UV> uvs = new ArrayList<UV>();
-        public List<GIFTag> directGifTags = new ArrayList<GIFTag>(1);
-        public List<VertexWeight> vertexWeights = new ArrayList<VertexWeight>();
-        public int[] extraVlocs;
-    }
-}
+    private boolean triangleStrips;
+    private boolean optimizeVertexCache;
+    private boolean quantizedVertices;
+    private CookedModels cookedModels;
 
+    // Vertex cache statistics for the last model read.
+    private int numTriangles;
+    private int cacheMissesBefore;
+    private int cacheMissesAfter;
+}
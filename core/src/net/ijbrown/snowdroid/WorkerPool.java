@@ -0,0 +1,19 @@
+package net.ijbrown.snowdroid;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork-join pool shared by the background loading tasks.
+ */
+public class WorkerPool
+{
+    public static synchronized ForkJoinPool get()
+    {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        }
+        return pool;
+    }
+
+    private static ForkJoinPool pool;
+}
@@ -0,0 +1,116 @@
+package net.ijbrown.snowdroid;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CatalogCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException
+    {
+        List<File> gobFiles = new ArrayList<File>();
+        gobFiles.add(createFile("SUB1.GOB", 0x1000));
+        gobFiles.add(createFile("SUB2.GOB", 0x2000));
+        List<List<AssetLocation>> locations = new ArrayList<List<AssetLocation>>();
+        locations.add(locations("SUB1.GOB"));
+        locations.add(locations("SUB2.GOB"));
+        File cacheFile = new File(folder.getRoot(), "snowdroid.idx");
+
+        CatalogCache.write(cacheFile, gobFiles, locations);
+        CatalogCache cache = CatalogCache.load(cacheFile, gobFiles, new NameTable());
+
+        assertTrue(cache.isUpToDate());
+        for (int gobNum = 0; gobNum < gobFiles.size(); ++gobNum) {
+            assertLocationsEqual(locations.get(gobNum), cache.getLocations(gobFiles.get(gobNum)));
+        }
+        // Names are interned, so each is one String however many GOBs and records it appears in.
+        List<AssetLocation> sub1 = cache.getLocations(gobFiles.get(0));
+        List<AssetLocation> sub2 = cache.getLocations(gobFiles.get(1));
+        assertSame(sub1.get(0).lumpName, sub2.get(0).lumpName);
+        assertSame(sub1.get(0).lumpName, sub1.get(1).lumpName);
+    }
+
+    @Test
+    public void onlyRescansChangedGobs() throws IOException
+    {
+        List<File> gobFiles = new ArrayList<File>();
+        gobFiles.add(createFile("SUB1.GOB", 0x1000));
+        gobFiles.add(createFile("SUB2.GOB", 0x2000));
+        List<List<AssetLocation>> locations = new ArrayList<List<AssetLocation>>();
+        locations.add(locations("SUB1.GOB"));
+        locations.add(locations("SUB2.GOB"));
+        File cacheFile = new File(folder.getRoot(), "snowdroid.idx");
+        CatalogCache.write(cacheFile, gobFiles, locations);
+
+        createFile("SUB2.GOB", 0x3000);
+        File newGob = createFile("SUB3.GOB", 10);
+        gobFiles.add(newGob);
+        CatalogCache cache = CatalogCache.load(cacheFile, gobFiles, new NameTable());
+
+        assertFalse(cache.isUpToDate());
+        assertLocationsEqual(locations.get(0), cache.getLocations(gobFiles.get(0)));
+        assertNull(cache.getLocations(gobFiles.get(1)));
+        assertNull(cache.getLocations(newGob));
+    }
+
+    @Test
+    public void ignoresFilesThatAreNotCaches() throws IOException
+    {
+        List<File> gobFiles = new ArrayList<File>();
+        gobFiles.add(createFile("SUB1.GOB", 0x1000));
+
+        assertNull(CatalogCache.load(new File(folder.getRoot(), "missing.idx"), gobFiles, new NameTable()));
+        assertNull(CatalogCache.load(createFile("empty.idx", 0), gobFiles, new NameTable()));
+        assertNull(CatalogCache.load(createFile("junk.idx", 4096), gobFiles, new NameTable()));
+    }
+
+    private File createFile(String name, int length) throws IOException
+    {
+        File file = new File(folder.getRoot(), name);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static List<AssetLocation> locations(String gobName)
+    {
+        List<AssetLocation> locations = new ArrayList<AssetLocation>();
+        locations.add(new AssetLocation(gobName, "kobold.lmp", null, 0x100, 0x400));
+        locations.add(new AssetLocation(gobName, "kobold.lmp", "kobold.vif", 0x184, 0x200));
+        locations.add(new AssetLocation(gobName, "kobold.lmp", "kobold.tex", 0x384, 0x17C));
+        locations.add(new AssetLocation(gobName, gobName.toLowerCase() + ".lmp", null, 0x500, 0x40));
+        return locations;
+    }
+
+    private static void assertLocationsEqual(List<AssetLocation> expected, List<AssetLocation> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+        }
+    }
+}
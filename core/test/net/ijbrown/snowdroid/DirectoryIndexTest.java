@@ -0,0 +1,83 @@
+package net.ijbrown.snowdroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DirectoryIndexTest
+{
+    private static final int NAME_STRIDE = 0x20;
+
+    @Test
+    public void findsEveryEntryAfterSorting()
+    {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 500; ++i) {
+            names.add("entry" + i + ".vif");
+        }
+        Collections.shuffle(names, new Random(1));
+        DirectoryIndex index = build(names);
+
+        assertEquals(names.size(), index.size());
+        for (int i = 0; i < names.size(); ++i) {
+            int entry = index.find(names.get(i));
+            assertEquals(names.get(i), index.getName(entry));
+            assertEquals(i * 0x100, index.getOffset(entry));
+            assertEquals(i, index.getLength(entry));
+        }
+    }
+
+    @Test
+    public void doesNotFindMissingNames()
+    {
+        DirectoryIndex index = build(names("barrel.lmp", "barrel.tex", "kobold.lmp"));
+
+        assertEquals(-1, index.find("barrel"));
+        assertEquals(-1, index.find("barrel.lmpx"));
+        assertEquals(-1, index.find("a.lmp"));
+        assertEquals(-1, index.find("z.lmp"));
+        assertEquals(-1, index.find(""));
+        assertEquals(-1, build(new ArrayList<String>()).find("barrel.lmp"));
+    }
+
+    @Test
+    public void findsNamesThatFillTheStride()
+    {
+        String longName = "abcdefghijklmnopqrstuvwxyz012345";
+        assertEquals(NAME_STRIDE, longName.length());
+        DirectoryIndex index = build(names(longName, longName.substring(0, NAME_STRIDE - 1)));
+
+        assertEquals(longName, index.getName(index.find(longName)));
+        assertEquals(longName.substring(0, NAME_STRIDE - 1),
+                     index.getName(index.find(longName.substring(0, NAME_STRIDE - 1))));
+    }
+
+    private static List<String> names(String... names)
+    {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, names);
+        return list;
+    }
+
+    // Each entry i gets offset i * 0x100 and length i.
+    private static DirectoryIndex build(List<String> names)
+    {
+        byte[] data = new byte[names.size() * NAME_STRIDE];
+        for (int i = 0; i < names.size(); ++i) {
+            byte[] name = names.get(i).getBytes();
+            System.arraycopy(name, 0, data, i * NAME_STRIDE, name.length);
+        }
+        ByteBuffer buffer = new ByteBuffer(data, 0, data.length);
+        DirectoryIndex index = new DirectoryIndex(names.size(), NAME_STRIDE);
+        for (int i = 0; i < names.size(); ++i) {
+            index.add(buffer, i * NAME_STRIDE, i * 0x100, i);
+        }
+        index.sort();
+        return index;
+    }
+}
@@ -0,0 +1,178 @@
+package net.ijbrown.snowdroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MeshAssemblerTest
+{
+    @Test
+    public void stitchesStripsKeepingTheirWinding()
+    {
+        // Strips of odd and even lengths, so that each stitch lands on both parities.
+        int[][] strips = {{0, 1, 2, 3}, {4, 5, 6}, {7, 8, 9, 10, 11}, {12, 13, 14, 15}};
+        for (int reversedMask = 0; reversedMask < 1 << strips.length; ++reversedMask) {
+            MeshAssembler assembler = createAssembler(16);
+            List<String> expected = new ArrayList<String>();
+            for (int s = 0; s < strips.length; ++s) {
+                boolean reversed = (reversedMask & (1 << s)) != 0;
+                assembler.strip(strips[s], 0, strips[s].length, reversed);
+                addStripTriangles(strips[s], strips[s].length, reversed, expected);
+            }
+
+            assertEquals(sorted(expected), sorted(getStripTriangles(assembler)));
+            assertEquals(expected.size(), assembler.getNumTriangles());
+        }
+    }
+
+    @Test
+    public void stitchesPartOfAnArray()
+    {
+        int[] strip = {9, 9, 0, 1, 2, 3, 4, 9};
+        MeshAssembler assembler = createAssembler(5);
+        assembler.strip(strip, 2, 5, false);
+        List<String> expected = new ArrayList<String>();
+        addStripTriangles(new int[]{0, 1, 2, 3, 4}, 5, false, expected);
+
+        assertEquals(sorted(expected), sorted(getStripTriangles(assembler)));
+    }
+
+    @Test
+    public void weldsIdenticalVertices()
+    {
+        MeshAssembler assembler = new MeshAssembler(8, 8);
+        int a = assembler.addVertex(1, 2, 3, 0, 0, 1, 0.5f, 0.25f, 7);
+        int b = assembler.addVertex(4, 5, 6, 0, 1, 0, 0.5f, 0.25f, 7);
+        int c = assembler.addVertex(7, 8, 9, 1, 0, 0, 0.5f, 0.25f, 7);
+        int aCopy = assembler.addVertex(1, 2, 3, 0, 0, 1, 0.5f, 0.25f, 7);
+        int otherUv = assembler.addVertex(1, 2, 3, 0, 0, 1, 0.75f, 0.25f, 7);
+        int otherWeight = assembler.addVertex(1, 2, 3, 0, 0, 1, 0.5f, 0.25f, MeshAssembler.NO_WEIGHT);
+        assembler.addVertex(10, 11, 12, 0, 0, 1, 0, 0, 7);          // Used by no triangle.
+        assembler.triangle(c, b, a);
+        assembler.triangle(aCopy, b, c);
+        assembler.triangle(otherUv, otherWeight, c);
+
+        assembler.weld();
+
+        // Numbered in first use order: c, b, a, otherUv, otherWeight. aCopy is a, and the unused vertex is dropped.
+        assertEquals(5, assembler.getNumVertices());
+        assertEquals("[0, 1, 2, 2, 1, 0, 3, 4, 0]", toString(assembler.getMeshIndices()));
+        float[] positions = getPositions(assembler);
+        assertEquals(7, positions[0], 0);
+        assertEquals(4, positions[3], 0);
+        assertEquals(1, positions[6], 0);
+        assertEquals(1, positions[9], 0);
+        assertEquals(7, assembler.getWeightId(3));
+        assertEquals(MeshAssembler.NO_WEIGHT, assembler.getWeightId(4));
+        assertEquals(3, assembler.getNumTriangles());
+    }
+
+    @Test
+    public void weldsTheStripAheadOfTheTriangles()
+    {
+        MeshAssembler assembler = new MeshAssembler(8, 8);
+        int[] strip = new int[4];
+        for (int i = 0; i < 4; ++i) {
+            strip[i] = assembler.addVertex(i, 0, 0, 0, 0, 1, 0, 0, MeshAssembler.NO_WEIGHT);
+        }
+        int copy = assembler.addVertex(3, 0, 0, 0, 0, 1, 0, 0, MeshAssembler.NO_WEIGHT);
+        int other = assembler.addVertex(4, 0, 0, 0, 0, 1, 0, 0, MeshAssembler.NO_WEIGHT);
+        assembler.triangle(other, copy, strip[0]);
+        assembler.strip(strip, 0, 4, false);
+
+        assembler.weld();
+
+        assertEquals(5, assembler.getNumVertices());
+        assertEquals(4, assembler.getNumStripIndices());
+        assertEquals("[0, 1, 2, 3, 4, 3, 0]", toString(assembler.getMeshIndices()));
+    }
+
+    // An assembler with numVertices distinct vertices, so that strips can be added by vertex number.
+    private static MeshAssembler createAssembler(int numVertices)
+    {
+        MeshAssembler assembler = new MeshAssembler(numVertices, 0);
+        for (int i = 0; i < numVertices; ++i) {
+            assembler.addVertex(i, 0, 0, 0, 0, 1, 0, 0, MeshAssembler.NO_WEIGHT);
+        }
+        return assembler;
+    }
+
+    // Adds the triangles a strip draws, wound as GL draws them and flipped if reversed.
+    private static void addStripTriangles(int[] strip, int count, boolean reversed, List<String> triangles)
+    {
+        for (int i = 2; i < count; ++i) {
+            boolean flip = ((i & 1) == 1) != reversed;
+            if (flip) {
+                addTriangle(strip[i - 1], strip[i - 2], strip[i], triangles);
+            } else {
+                addTriangle(strip[i - 2], strip[i - 1], strip[i], triangles);
+            }
+        }
+    }
+
+    // The triangles that GL draws from the assembler's strip, leaving out the degenerate ones.
+    private static List<String> getStripTriangles(MeshAssembler assembler)
+    {
+        short[] indices = assembler.getMeshIndices();
+        int[] strip = new int[assembler.getNumStripIndices()];
+        for (int i = 0; i < strip.length; ++i) {
+            strip[i] = indices[i];
+        }
+        List<String> triangles = new ArrayList<String>();
+        addStripTriangles(strip, strip.length, false, triangles);
+        return triangles;
+    }
+
+    // Adds a triangle rotated to start at its lowest vertex, which keeps its winding. Degenerate triangles
+    // are left out.
+    private static void addTriangle(int v1, int v2, int v3, List<String> triangles)
+    {
+        if (v1 == v2 || v2 == v3 || v1 == v3) {
+            return;
+        }
+        if (v2 < v1 && v2 < v3) {
+            triangles.add(v2 + " " + v3 + " " + v1);
+        } else if (v3 < v1 && v3 < v2) {
+            triangles.add(v3 + " " + v1 + " " + v2);
+        } else {
+            triangles.add(v1 + " " + v2 + " " + v3);
+        }
+    }
+
+    private static List<String> sorted(List<String> list)
+    {
+        List<String> copy = new ArrayList<String>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static String toString(short[] indices)
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < indices.length; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(indices[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    // The x, y and z of each vertex.
+    private static float[] getPositions(MeshAssembler assembler)
+    {
+        java.nio.ByteBuffer vertices = assembler.getMeshVertices();
+        int vertexSize = assembler.getVertexAttributes().vertexSize;
+        float[] positions = new float[assembler.getNumVertices() * 3];
+        for (int v = 0; v < assembler.getNumVertices(); ++v) {
+            for (int i = 0; i < 3; ++i) {
+                positions[v * 3 + i] = vertices.getFloat(v * vertexSize + i * 4);
+            }
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,86 @@
+package net.ijbrown.snowdroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MeshOptimizerTest
+{
+    private static final int GRID_SIZE = 60;
+
+    @Test
+    public void keepsEveryTriangleAndItsWinding()
+    {
+        int[] indices = createShuffledGrid();
+        List<String> before = getTriangles(indices);
+
+        MeshOptimizer.optimizeTriangles(indices, indices.length, getNumGridVertices());
+
+        assertEquals(before, getTriangles(indices));
+    }
+
+    @Test
+    public void reducesCacheMissesOnAShuffledGrid()
+    {
+        int[] indices = createShuffledGrid();
+        int numVertices = getNumGridVertices();
+        int numTriangles = indices.length / 3;
+        float acmrBefore = (float) MeshOptimizer.countCacheMisses(indices, indices.length, numVertices) / numTriangles;
+
+        MeshOptimizer.optimizeTriangles(indices, indices.length, numVertices);
+        float acmrAfter = (float) MeshOptimizer.countCacheMisses(indices, indices.length, numVertices) / numTriangles;
+
+        assertEquals(2.98f, acmrBefore, 0.01f);
+        assertTrue("ACMR after is " + acmrAfter, acmrAfter < 0.7f);
+    }
+
+    @Test
+    public void countsCacheMissesWithAFifo()
+    {
+        // The first triangle misses three times, the second only on vertex 3.
+        assertEquals(4, MeshOptimizer.countCacheMisses(new int[]{0, 1, 2, 2, 1, 3}, 6, 4));
+    }
+
+    private static int getNumGridVertices()
+    {
+        return (GRID_SIZE + 1) * (GRID_SIZE + 1);
+    }
+
+    // A grid of two triangles per square plus one degenerate triangle, in a random order.
+    private static int[] createShuffledGrid()
+    {
+        List<int[]> triangles = new ArrayList<int[]>();
+        for (int y = 0; y < GRID_SIZE; ++y) {
+            for (int x = 0; x < GRID_SIZE; ++x) {
+                int v = y * (GRID_SIZE + 1) + x;
+                triangles.add(new int[]{v, v + 1, v + GRID_SIZE + 1});
+                triangles.add(new int[]{v + 1, v + GRID_SIZE + 2, v + GRID_SIZE + 1});
+            }
+        }
+        triangles.add(new int[]{0, 0, 1});
+        Collections.shuffle(triangles, new Random(5));
+        int[] indices = new int[triangles.size() * 3];
+        for (int i = 0; i < triangles.size(); ++i) {
+            System.arraycopy(triangles.get(i), 0, indices, i * 3, 3);
+        }
+        return indices;
+    }
+
+    // The triangles, sorted so that they can be compared regardless of their order.
+    private static List<String> getTriangles(int[] indices)
+    {
+        List<String> triangles = new ArrayList<String>();
+        for (int i = 0; i < indices.length; i += 3) {
+            triangles.add(Arrays.toString(Arrays.copyOfRange(indices, i, i + 3)));
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+}
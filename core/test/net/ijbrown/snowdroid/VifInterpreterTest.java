@@ -0,0 +1,363 @@
+package net.ijbrown.snowdroid;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class VifInterpreterTest
+{
+    // The CRCs of the meshes that the reader before VifInterpreter assembled from streams 1 to 20 of
+    // createMeshStream, without and with triangle strips. See getMeshCrc.
+    private static final long MESH_CRC = 3096739902L;
+    private static final long STRIP_MESH_CRC = 935878921L;
+
+    @Test
+    public void unpacksEveryFormat()
+    {
+        Random random = new Random(1);
+        for (int format = 0; format < 16; ++format) {
+            int vn = format >> 2;
+            int vl = format & 3;
+            if (vl == 3 && vn != 3) {
+                continue;
+            }
+            for (int usn = 0; usn < 2; ++usn) {
+                int numVectors = 1 + random.nextInt(20);
+                int components = vl == 3 ? 1 : vn + 1;
+                int bits = vl == 3 ? 16 : 32 >> vl;
+                byte[] data = new byte[(numVectors * components * bits / 8 + 3) & ~3];
+                random.nextBytes(data);
+                int address = random.nextInt(0x400);
+                Stream stream = new Stream();
+                stream.command(0x60 | format, numVectors, address | (usn << 14));
+                stream.bytes(data);
+                stream.command(0x14, 0, 0x42);
+
+                List<String> events = read(stream);
+
+                int[] expected = decode(new ByteBuffer(data, 0, data.length), vn, vl, usn == 1, numVectors);
+                assertEquals(unpackEvent(vn, vl, address, usn == 1, false, expected), events.get(0));
+                assertEquals("mscal 66", events.get(1));
+                assertEquals(2, events.size());
+            }
+        }
+    }
+
+    @Test
+    public void unpacksThroughTheMask()
+    {
+        Stream stream = new Stream();
+        stream.command(0x7C, 1, 0x10);
+        stream.ints(1, 2, 3, 4);
+
+        assertEquals(unpackEvent(3, 0, 0x10, false, true, new int[]{1, 2, 3, 4}), read(stream).get(0));
+    }
+
+    @Test
+    public void stepsOverEveryCommand()
+    {
+        Stream stream = new Stream();
+        stream.command(0x00, 0, 0);                 // NOP
+        stream.command(0x01, 0, 0x0101);            // STCYCL
+        stream.command(0x20, 0, 0);                 // STMASK
+        stream.ints(0x12345678);
+        stream.command(0x30, 0, 0);                 // STROW
+        stream.ints(1, 2, 3, 4);
+        stream.command(0x31, 0, 0);                 // STCOL
+        stream.ints(5, 6, 7, 8);
+        stream.command(0x4A, 2, 0x10);              // MPG, two instructions
+        stream.ints(0, 0, 0, 0);
+        stream.command(0x50, 0, 2);                 // DIRECT, two quadwords
+        stream.ints(0, 0, 0, 0, 0, 0, 0, 0);
+        stream.command(0x51, 0, 1);                 // DIRECTHL
+        stream.ints(0, 0, 0, 0);
+        stream.command(0x15, 0, 0x20);              // MSCALF
+        stream.command(0x11, 0, 0);                 // FLUSH
+        stream.command(0x14 | 0x80, 0, 0x30);       // MSCAL with the interrupt bit
+
+        List<String> events = read(stream);
+
+        String[] expected = {"command 0 0 0", "command 1 257 0", "command 32 0 0", "command 48 0 0",
+                             "command 49 0 0", "command 74 16 2", "direct 80 2", "direct 116 1", "mscal 32",
+                             "command 17 0 0", "mscal 48"};
+        assertArrayEquals(expected, events.toArray());
+    }
+
+    @Test
+    public void stopsAtAnUnknownCommand()
+    {
+        Stream stream = new Stream();
+        stream.command(0x14, 0, 1);
+        stream.command(0x08, 0, 0);
+        stream.command(0x14, 0, 2);
+
+        assertArrayEquals(new Object[]{"mscal 1"}, read(stream).toArray());
+    }
+
+    @Test
+    public void stopsAtAnUnknownUnpackFormat()
+    {
+        Stream stream = new Stream();
+        stream.command(0x14, 0, 1);
+        stream.command(0x63, 1, 0);                 // vl 3 only exists with vn 3, as V4-5.
+        stream.ints(0);
+        stream.command(0x14, 0, 2);
+
+        assertArrayEquals(new Object[]{"mscal 1"}, read(stream).toArray());
+    }
+
+    @Test
+    public void assemblesTheSameMeshesAsBefore()
+    {
+        assertEquals(MESH_CRC, getMeshCrc(false));
+        assertEquals(STRIP_MESH_CRC, getMeshCrc(true));
+    }
+
+    // Assembles streams 1 to 20 and takes the CRC of each mesh's vertex floats, whether each vertex is weighted,
+    // and the triangle and strip indices.
+    private static long getMeshCrc(boolean triangleStrips)
+    {
+        CRC32 crc = new CRC32();
+        for (int seed = 1; seed <= 20; ++seed) {
+            byte[] data = createMeshStream(seed);
+            VifReader reader = new VifReader();
+            reader.setTriangleStrips(triangleStrips);
+            reader.setOptimizeVertexCache(false);
+            MeshAssembler assembler = reader.assembleMesh(new ByteBuffer(data, 0, data.length), 0, data.length,
+                                                          1.0f / 64, 1.0f / 64, 0.0f, 0.0f);
+            java.nio.ByteBuffer vertices = assembler.getMeshVertices();
+            int vertexSize = assembler.getVertexAttributes().vertexSize;
+            update(crc, assembler.getNumVertices());
+            for (int v = 0; v < assembler.getNumVertices(); ++v) {
+                for (int i = 0; i < 8; ++i) {
+                    update(crc, Float.floatToIntBits(vertices.getFloat(v * vertexSize + i * 4)));
+                }
+                update(crc, assembler.getWeightId(v) >= 0 ? 1 : 0);
+            }
+            short[] indices = assembler.getMeshIndices();
+            int numStripIndices = assembler.getNumStripIndices();
+            update(crc, indices.length - numStripIndices);
+            for (int i = numStripIndices; i < indices.length; ++i) {
+                update(crc, indices[i]);
+            }
+            update(crc, numStripIndices);
+            for (int i = 0; i < numStripIndices; ++i) {
+                update(crc, indices[i]);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, int value)
+    {
+        crc.update(value);
+        crc.update(value >> 8);
+        crc.update(value >> 16);
+        crc.update(value >> 24);
+    }
+
+    // A random skinned mesh in the layout the models use: per chunk a GIF tag, positions, normals, vertex
+    // locations with some ADC bits set, maybe vertex weights, then MSCAL and the uvs for the chunk.
+    private static byte[] createMeshStream(long seed)
+    {
+        Random r = new Random(seed);
+        Stream stream = new Stream();
+        int numChunks = 1 + r.nextInt(6);
+        for (int chunk = 0; chunk < numChunks; ++chunk) {
+            int numVertices = 3 + r.nextInt(30);
+            int nreg = 3;
+            int nloop = numVertices + r.nextInt(6);
+            stream.command(0x01, 0, 0x0101);
+            stream.command(0x6C, 1, 0);
+            stream.ints(nloop | 0x8000, (4 << 15) | (nreg << 28), 0x512, 0);
+            stream.command(0x69, numVertices, 0);
+            for (int i = 0; i < numVertices * 3; ++i) {
+                stream.short16(r.nextInt(400) - 200);
+            }
+            stream.pad();
+            stream.command(0x6A, numVertices, 0);
+            for (int i = 0; i < numVertices * 3; ++i) {
+                stream.byte8(r.nextInt(255) - 127);
+            }
+            stream.pad();
+            int numVlocs = numVertices + 2;
+            stream.command(0x69, numVlocs, 0x4000);
+            for (int i = 0; i < numVlocs; ++i) {
+                int v1 = (Math.max(i - 2, 0) % nloop) * nreg | (r.nextInt(5) == 0 ? 0x8000 : 0);
+                int v2 = r.nextInt(nloop) * nreg;
+                int v3 = (r.nextInt(3) == 0 ? r.nextInt(nloop) * nreg : 0x1FF) | (r.nextInt(6) == 0 ? 0x8000 : 0);
+                stream.short16(v1);
+                stream.short16(v2);
+                stream.short16(v3);
+            }
+            stream.pad();
+            if (r.nextBoolean()) {
+                List<int[]> weights = new ArrayList<int[]>();
+                int numWeighted = 0;
+                while (numWeighted < numVertices) {
+                    int kind = r.nextInt(3);
+                    if (kind == 0) {
+                        int count = 1 + r.nextInt(4);
+                        weights.add(new int[]{r.nextInt(8) * 4, 255, 0xFF, count});
+                        numWeighted += count;
+                    } else if (kind == 1) {
+                        weights.add(new int[]{r.nextInt(8) * 4, 200, r.nextInt(8) * 4, 55});
+                        ++numWeighted;
+                    } else {
+                        weights.add(new int[]{r.nextInt(8) * 4, 100, r.nextInt(8) * 4, 55});
+                        weights.add(new int[]{r.nextInt(8) * 4, 100, r.nextBoolean() ? 0xFF : r.nextInt(8) * 4, 0});
+                        ++numWeighted;
+                    }
+                }
+                stream.command(0x6E, weights.size(), 0);
+                for (int[] weight : weights) {
+                    for (int b : weight) {
+                        stream.byte8(b);
+                    }
+                }
+            }
+            if (chunk == 0 || r.nextBoolean()) {
+                stream.command(0x20, 0, 0);
+                stream.ints(0);
+            }
+            stream.command(0x14, 0, 66);
+            stream.command(0x65, nloop, 0);
+            for (int i = 0; i < nloop * 2; ++i) {
+                stream.short16(r.nextInt(64));
+            }
+            stream.command(0x11, 0, 0);
+        }
+        return stream.toByteArray();
+    }
+
+    private static List<String> read(Stream stream)
+    {
+        byte[] data = stream.toByteArray();
+        final List<String> events = new ArrayList<String>();
+        new VifInterpreter().read(new ByteBuffer(data, 0, data.length), 0, data.length, new VifInterpreter.Visitor()
+        {
+            @Override
+            public void unpack(int vn, int vl, int address, boolean usn, boolean masked, int[] values, int numVectors)
+            {
+                int components = vl == 3 ? 4 : vn + 1;
+                int[] copy = new int[numVectors * components];
+                System.arraycopy(values, 0, copy, 0, copy.length);
+                events.add(unpackEvent(vn, vl, address, usn, masked, copy));
+            }
+
+            @Override
+            public void direct(ByteBuffer data, int offset, int numQuadwords)
+            {
+                events.add("direct " + offset + " " + numQuadwords);
+            }
+
+            @Override
+            public void mscal(int address)
+            {
+                events.add("mscal " + address);
+            }
+
+            @Override
+            public void command(int command, int immediate, int num)
+            {
+                events.add("command " + command + " " + immediate + " " + num);
+            }
+        });
+        return events;
+    }
+
+    private static String unpackEvent(int vn, int vl, int address, boolean usn, boolean masked, int[] values)
+    {
+        StringBuilder sb = new StringBuilder("unpack ");
+        sb.append(vn).append(' ').append(vl).append(' ').append(address).append(' ').append(usn).append(' ');
+        sb.append(masked);
+        for (int value : values) {
+            sb.append(' ').append(value);
+        }
+        return sb.toString();
+    }
+
+    // Decodes UNPACK data one component at a time, as the VIF documentation describes it.
+    private static int[] decode(ByteBuffer data, int vn, int vl, boolean usn, int numVectors)
+    {
+        if (vl == 3) {
+            int[] values = new int[numVectors * 4];
+            for (int i = 0; i < numVectors; ++i) {
+                int rgba = data.getLEUShort(i * 2);
+                values[i * 4] = (rgba & 0x1F) << 3;
+                values[i * 4 + 1] = ((rgba >> 5) & 0x1F) << 3;
+                values[i * 4 + 2] = ((rgba >> 10) & 0x1F) << 3;
+                values[i * 4 + 3] = (rgba >> 15) << 7;
+            }
+            return values;
+        }
+        int[] values = new int[numVectors * (vn + 1)];
+        for (int i = 0; i < values.length; ++i) {
+            if (vl == 0) {
+                values[i] = data.getLEInt(i * 4);
+            } else if (vl == 1) {
+                values[i] = usn ? data.getLEUShort(i * 2) : data.getLEShort(i * 2);
+            } else {
+                values[i] = usn ? data.getUnsignedByte(i) : data.getByte(i);
+            }
+        }
+        return values;
+    }
+
+    // Builds a little endian VIF stream.
+    private static class Stream
+    {
+        void command(int command, int num, int immediate)
+        {
+            short16(immediate);
+            byte8(num);
+            byte8(command);
+        }
+
+        void ints(int... values)
+        {
+            for (int value : values) {
+                short16(value);
+                short16(value >> 16);
+            }
+        }
+
+        void bytes(byte[] data)
+        {
+            bytes.write(data, 0, data.length);
+        }
+
+        void short16(int value)
+        {
+            byte8(value);
+            byte8(value >> 8);
+        }
+
+        void byte8(int value)
+        {
+            bytes.write(value);
+        }
+
+        // Commands are 32 bit aligned.
+        void pad()
+        {
+            while (bytes.size() % 4 != 0) {
+                bytes.write(0);
+            }
+        }
+
+        byte[] toByteArray()
+        {
+            return bytes.toByteArray();
+        }
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    }
+}
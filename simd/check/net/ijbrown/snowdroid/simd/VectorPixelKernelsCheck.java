@@ -0,0 +1,68 @@
+package net.ijbrown.snowdroid.simd;
+
+import net.ijbrown.snowdroid.PixelKernels;
+import net.ijbrown.snowdroid.SwizzleTable;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that PixelKernels.get() picks up the vector kernels, and that they give the same pixels as the scalar
+ * ones, for whatever vector width the JVM is running with.
+ * Run with: gradle -Psimd :simd:check
+ */
+public class VectorPixelKernelsCheck
+{
+    public static void main(String[] args)
+    {
+        PixelKernels kernels = PixelKernels.get();
+        if (!(kernels instanceof VectorPixelKernels)) {
+            fail("PixelKernels.get() gave the " + kernels + " kernels");
+        }
+        PixelKernels scalar = new PixelKernels();
+        Random random = new Random(1);
+        for (int size = 8; size <= 256; size *= 2) {
+            int[] table8 = SwizzleTable.get(SwizzleTable.PSMT8, size, size);
+            int[] table4 = SwizzleTable.get(SwizzleTable.PSMT4, size, size);
+            int uploadBytes = Math.max(SwizzleTable.getUploadWidth(SwizzleTable.PSMT8, size) *
+                                               SwizzleTable.getUploadHeight(SwizzleTable.PSMT8, size),
+                                       SwizzleTable.getUploadWidth(SwizzleTable.PSMT4, size) *
+                                               SwizzleTable.getUploadHeight(SwizzleTable.PSMT4, size)) * 4;
+            byte[] uploaded = new byte[Math.max(uploadBytes, size * size * 4)];
+            random.nextBytes(uploaded);
+            int[] palette = new int[256];
+            for (int i = 0; i < palette.length; ++i) {
+                palette[i] = random.nextInt();
+            }
+            // Odd ranges, so that the scalar tails are covered as well.
+            int start = random.nextInt(size);
+            int end = size * size - random.nextInt(size);
+
+            int[] expected = new int[size * size];
+            int[] actual = new int[size * size];
+            scalar.gather8(uploaded, palette, table8, expected, start, end);
+            kernels.gather8(uploaded, palette, table8, actual, start, end);
+            compare("gather8", size, expected, actual);
+            scalar.gather4(uploaded, Arrays.copyOf(palette, 16), table4, expected, start, end);
+            kernels.gather4(uploaded, Arrays.copyOf(palette, 16), table4, actual, start, end);
+            compare("gather4", size, expected, actual);
+            scalar.rgba32(uploaded, expected, start, end);
+            kernels.rgba32(uploaded, actual, start, end);
+            compare("rgba32", size, expected, actual);
+        }
+        System.out.println("The " + kernels + " kernels match the scalar kernels");
+    }
+
+    private static void compare(String kernel, int size, int[] expected, int[] actual)
+    {
+        if (!Arrays.equals(expected, actual)) {
+            fail(kernel + " differs from the scalar kernel for " + size + "x" + size);
+        }
+    }
+
+    private static void fail(String message)
+    {
+        System.out.println(message);
+        System.exit(1);
+    }
+}
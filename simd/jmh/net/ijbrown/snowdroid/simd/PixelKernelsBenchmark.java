@@ -0,0 +1,90 @@
+package net.ijbrown.snowdroid.simd;
+
+import net.ijbrown.snowdroid.PixelKernels;
+import net.ijbrown.snowdroid.SwizzleTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scalar and vector PixelKernels on one texture.
+ * Run with: gradle -Psimd :simd:jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PixelKernelsBenchmark
+{
+    @Param({"64", "256", "512"})
+    public int size;
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    private PixelKernels pixelKernels;
+    private byte[] uploaded;
+    private int[] palette256;
+    private int[] palette16;
+    private int[] table8;
+    private int[] table4;
+    private int[] dest;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        pixelKernels = "vector".equals(kernels) ? new VectorPixelKernels() : new PixelKernels();
+
+        Random random = new Random(1);
+        table8 = SwizzleTable.get(SwizzleTable.PSMT8, size, size);
+        table4 = SwizzleTable.get(SwizzleTable.PSMT4, size, size);
+        int uploadBytes = Math.max(SwizzleTable.getUploadWidth(SwizzleTable.PSMT8, size) *
+                                           SwizzleTable.getUploadHeight(SwizzleTable.PSMT8, size),
+                                   SwizzleTable.getUploadWidth(SwizzleTable.PSMT4, size) *
+                                           SwizzleTable.getUploadHeight(SwizzleTable.PSMT4, size)) * 4;
+        uploaded = new byte[Math.max(uploadBytes, size * size * 4)];
+        random.nextBytes(uploaded);
+        palette256 = new int[256];
+        for (int i = 0; i < palette256.length; ++i) {
+            palette256[i] = random.nextInt();
+        }
+        palette16 = new int[16];
+        System.arraycopy(palette256, 0, palette16, 0, 16);
+        dest = new int[size * size];
+    }
+
+    @Benchmark
+    public int[] gather8()
+    {
+        pixelKernels.gather8(uploaded, palette256, table8, dest, 0, dest.length);
+        return dest;
+    }
+
+    @Benchmark
+    public int[] gather4()
+    {
+        pixelKernels.gather4(uploaded, palette16, table4, dest, 0, dest.length);
+        return dest;
+    }
+
+    @Benchmark
+    public int[] rgba32()
+    {
+        pixelKernels.rgba32(uploaded, dest, 0, dest.length);
+        return dest;
+    }
+}
@@ -0,0 +1,43 @@
+package net.ijbrown.snowdroid.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+import net.ijbrown.snowdroid.PixelKernels;
+
+import java.nio.ByteOrder;
+
+/**
+ * PixelKernels using the JDK vector API. Loaded by PixelKernels.get() when it is on the class path and the
+ * jdk.incubator.vector module is available. The tail of each range that does not fill a vector is done by
+ * the scalar code, so the results are identical.
+ * Only the 32 bit conversion is vectorised. The palette gathers are one table lookup per pixel, and gathering
+ * them with vectors measured slower than the scalar loop with 128, 256 and 512 bit vectors, see simd:jmh.
+ */
+public class VectorPixelKernels extends PixelKernels
+{
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    public VectorPixelKernels()
+    {
+        if (INTS.length() < 4) {
+            throw new UnsupportedOperationException("No useful vector width");
+        }
+    }
+
+    @Override
+    public void rgba32(byte[] src, int[] dest, int start, int end)
+    {
+        // R, G, B, A bytes read big endian give RGBA8888 directly. PalEntry.rgba makes every pixel opaque.
+        int i = start;
+        for (int upper = end - INTS.length(); i <= upper; i += INTS.length()) {
+            IntVector.fromByteArray(INTS, src, i * 4, ByteOrder.BIG_ENDIAN).or(0xFF).intoArray(dest, i);
+        }
+        super.rgba32(src, dest, i, end);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "vector " + INTS;
+    }
+}